@@ -2,10 +2,28 @@
  * 📘 UT3 - API REST sin Spring totalmente funcional en un único archivo Java
  * ========================================================================
  * ✔️ CRUD completo de productos: Crear, Leer, Actualizar, Eliminar
- * ✔️ Almacenamiento en memoria (HashMap con ID autoincremental)
- * ✔️ Manejo manual de JSON (entrada y salida)
+ * ✔️ Almacenamiento en memoria concurrente (ConcurrentSkipListMap + AtomicLong para el ID)
+ * ✔️ Modo columnar (ALMACEN=columnar) para catálogos de decenas de millones de productos
+ * ✔️ Pool de hilos configurable: las peticiones se atienden en varios núcleos
+ * ✔️ Modo hilos virtuales (EJECUTOR=virtual) y modo comparar con el pool fijo
+ * ✔️ Listados en streaming (chunked) con buffers reutilizables
+ * ✔️ Paginación por cursor opaco (?limit=N&after=cursor)
+ * ✔️ Snapshot binario periódico (FileChannel + rename atómico) y arranque rápido con mmap
+ * ✔️ Body acotado: se lee en buffers del pool y lo que excede el límite → 413
+ * ✔️ Modo repartidor (MODO=router): catálogo particionado por ID con hashing consistente
+ * ✔️ Manejo manual de JSON (entrada con lector de una pasada sobre bytes, salida manual)
  * ✔️ Soporte CORS para pruebas desde frontend
- * ✔️ Filtro por precio mínimo vía query param
+ * ✔️ ETag / If-None-Match: 304 si el producto o el catálogo no han cambiado
+ * ✔️ Compresión gzip negociada (Accept-Encoding) para respuestas grandes
+ * ✔️ GET /metrics: peticiones, códigos, bytes y latencias p50/p99/p999 por ruta
+ * ✔️ Control de admisión: límite adaptativo (AIMD) → 503 y cubo de tokens por IP → 429
+ * ✔️ GET /salud: comprobación de vida que nunca se rechaza
+ * ✔️ Filtro por rango de precio vía query param (índice ordenado por precio)
+ * ✔️ Top-K por precio o stock sin ordenar el catálogo (GET /productos/top?por=&orden=&k=)
+ * ✔️ Búsqueda por subcadena del nombre con índice de trigramas (GET /productos/buscar?q=)
+ * ✔️ Feed de cambios en vivo con Server-Sent Events (GET /productos/cambios, Last-Event-ID)
+ * ✔️ Estadísticas del catálogo en O(1) (GET /productos/stats), mantenidas en cada escritura
+ * ✔️ Reserva / liberación atómica de stock (POST /productos/{id}/reservar|liberar)
  *
  * ✅ Este archivo está pensado para aprender REST de forma práctica y didáctica.
  * Puedes probar todo desde Thunder Client (VS Code) o Postman.
@@ -13,18 +31,62 @@
 
 import com.sun.net.httpserver.*;
 import java.io.*;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.net.*;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongConsumer;
+import java.util.function.LongFunction;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 public class UT3_ApiRestProductos {
 
-    // 🗂 Repositorio en memoria (clave: ID, valor: Producto)
-    static Map<Long, Producto> productos = new HashMap<>();
-    static long contadorId = 1; // 🧮 Contador autoincremental para ID de productos
+    // 🗂 Repositorio en memoria compartido por todos los hilos del servidor
+    // 🧱 ALMACEN=columnar (env) guarda el catálogo en columnas de tipos primitivos
+    static final RepositorioProductos productos = new RepositorioProductos(
+            "columnar".equalsIgnoreCase(System.getenv("ALMACEN")) ? new AlmacenColumnar() : new AlmacenMapa());
 
     /**
      * 🚀 Método principal: inicia servidor HTTP embebido en puerto 8000 (o PORT/env/args)
+     * 🧵 Nº de hilos del pool: HILOS (env) o segundo argumento; 0 = un único hilo despachador
+     * 🪶 EJECUTOR (env): plataforma (pool fijo, por defecto) | virtual (un hilo virtual
+     *    por petición, Java 21+) | comparar (virtual en PORT y pool fijo en PORT+1,
+     *    ambos sobre el mismo catálogo, para medirlos con la misma carga)
+     * 🧭 MODO=router (env): repartidor delante de varios nodos UT3 (catálogo particionado);
+     *    NODOS=3 lanza 3 nodos en PORT+1..PORT+3, NODOS=http://host:8001,http://host:8002 usa esos
+     *    (con nodos ya arrancados, CLAVE_REPARTIDOR debe ser la misma en repartidor y nodos)
+     * 💾 SNAPSHOT (env): archivo del snapshot, p. ej. SNAPSHOT=productos.snap (sin definir
+     *    u "off" = sin persistencia), SNAPSHOT_SEG: cada cuántos segundos se guarda si hubo cambios (30)
      */
     public static void main(String[] args) throws IOException {
         int puerto = 8000;
@@ -32,150 +94,3189 @@ public class UT3_ApiRestProductos {
         if (env != null) try { puerto = Integer.parseInt(env); } catch (NumberFormatException ignored) {}
         else if (args.length > 0) try { puerto = Integer.parseInt(args[0]); } catch (NumberFormatException ignored) {}
 
+        int hilos = Runtime.getRuntime().availableProcessors();
+        String envHilos = System.getenv("HILOS");
+        if (envHilos != null) try { hilos = Integer.parseInt(envHilos); } catch (NumberFormatException ignored) {}
+        else if (args.length > 1) try { hilos = Integer.parseInt(args[1]); } catch (NumberFormatException ignored) {}
+
+        // ⏱ Una petición que tarda más de 30 s en llegar (cliente "slowloris") se corta.
+        //    Se lee al crear el primer HttpServer, así que va antes de arrancar
+        if (System.getProperty("sun.net.httpserver.maxReqTime") == null)
+            System.setProperty("sun.net.httpserver.maxReqTime", "30");
+
+        if ("router".equalsIgnoreCase(System.getenv("MODO"))) { // 🧭 Sin catálogo propio: reparte entre nodos
+            Repartidor.arrancar(puerto, crearExecutor(hilos), descripcionPool(hilos));
+            return;
+        }
+
+        iniciarSnapshots(); // 💾 primero se carga el catálogo: el servidor arranca ya con datos
+
+        String modo = Optional.ofNullable(System.getenv("EJECUTOR")).orElse("plataforma").toLowerCase();
+        switch (modo) {
+            case "virtual" -> arrancarVirtual(puerto);
+            case "comparar" -> {
+                arrancarVirtual(puerto);
+                arrancar(puerto + 1, crearExecutor(hilos), descripcionPool(hilos));
+            }
+            default -> arrancar(puerto, crearExecutor(hilos), descripcionPool(hilos));
+        }
+    }
+
+    private static long versionGuardada = -1;
+
+    /**
+     * 💾 Carga el último snapshot (si existe) y programa los siguientes
+     * - Solo si se pide con SNAPSHOT=archivo: sin él no se escribe nada en disco
+     * - Cada SNAPSHOT_SEG segundos en un hilo aparte, solo si el catálogo cambió
+     * - Uno final al apagar (Ctrl+C) para no perder los últimos cambios
+     * - Snapshot dañado → aviso, se aparta como archivo.danado y se arranca vacío
+     */
+    static void iniciarSnapshots() {
+        String ruta = System.getenv("SNAPSHOT");
+        if (ruta == null || ruta.isBlank() || ruta.equalsIgnoreCase("off")) return;
+        Path archivo = Path.of(ruta);
+        if (Files.exists(archivo)) {
+            long t0 = System.nanoTime();
+            try {
+                int n = Snapshot.cargar(productos, archivo);
+                System.out.printf("📂 %d productos cargados de %s en %d ms%n", n, archivo, (System.nanoTime() - t0) / 1_000_000);
+            } catch (IOException e) {
+                descartarSnapshot(archivo, e);
+            }
+        }
+        synchronized (UT3_ApiRestProductos.class) { versionGuardada = productos.version(); }
+        int cada = 30;
+        try { cada = Integer.parseInt(System.getenv("SNAPSHOT_SEG")); } catch (NumberFormatException ignored) {}
+        if (cada > 0) {
+            ScheduledExecutorService programador = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "productos-snapshot");
+                t.setDaemon(true);
+                return t;
+            });
+            programador.scheduleWithFixedDelay(() -> guardarSiCambio(archivo), cada, cada, TimeUnit.SECONDS);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> guardarSiCambio(archivo), "productos-snapshot-final"));
+    }
+
+    // 🩹 Los bloques se cargan en paralelo: los que ya entraron se quitan antes de atender a nadie
+    private static void descartarSnapshot(Path archivo, IOException causa) {
+        List<Long> cargados = new ArrayList<>();
+        for (Producto p : productos.todos()) cargados.add(p.getId());
+        for (long id : cargados) productos.eliminar(id);
+        Path apartado = archivo.resolveSibling(archivo.getFileName() + ".danado");
+        try {
+            Files.move(archivo, apartado, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            apartado = archivo; // ⚠️ se sobrescribirá con el siguiente snapshot
+        }
+        System.err.println("⚠️ " + causa.getMessage() + " → se arranca con el catálogo vacío (archivo en " + apartado + ")");
+    }
+
+    // 💾 La versión se lee ANTES de recorrer: lo que cambie durante el guardado entra en el siguiente
+    static synchronized void guardarSiCambio(Path archivo) {
+        long v = productos.version();
+        if (v == versionGuardada) return;
+        try {
+            long t0 = System.nanoTime();
+            int n = Snapshot.guardar(productos, archivo);
+            versionGuardada = v;
+            System.out.printf("💾 Snapshot: %d productos en %s (%d ms)%n", n, archivo, (System.nanoTime() - t0) / 1_000_000);
+        } catch (IOException e) {
+            System.err.println("⚠️ No se pudo guardar el snapshot: " + e.getMessage());
+        }
+    }
+
+    // ▶️ Crea, configura y arranca un servidor en el puerto indicado
+    static void arrancar(int puerto, Executor executor, String descripcion) throws IOException {
+        arrancar(puerto, executor, descripcion, UT3_ApiRestProductos::handleProductos);
+    }
+
+    // 🧭 Igual, con otro handler para /productos (el repartidor); null si el puerto está ocupado
+    static HttpServer arrancar(int puerto, Executor executor, String descripcion, HttpHandler handler) throws IOException {
         HttpServer server;
         try {
             server = HttpServer.create(new InetSocketAddress(puerto), 0);
         } catch (BindException e) {
             System.err.println("❌ Error: puerto " + puerto + " en uso. Usa otro puerto o cambia PORT");
-            return;
+            return null;
         }
 
-        server.createContext("/productos", UT3_ApiRestProductos::handleProductos); // Rutas base
-        server.setExecutor(null); // Usa el executor por defecto
+        ControlAdmision admision = ControlAdmision.desdeEntorno();
+        HttpContext ctx = server.createContext("/productos", handler); // Rutas base
+        ctx.getFilters().add(new FiltroMetricas());   // 1º mide (también los rechazos)
+        ctx.getFilters().add(admision);               // 2º decide si entra
+        server.createContext("/metrics", UT3_ApiRestProductos::handleMetricas);   // 📊 Métricas
+        server.createContext("/salud", ex -> handleSalud(ex, admision));          // 💓 Sin control de admisión
+        // 🧵 Pool de hilos, hilos virtuales o null = executor por defecto (marcando la hora de encolado)
+        server.setExecutor(executor == null ? null : ControlAdmision.marcarCola(executor));
         server.start();
-        System.out.println("✅ Servidor iniciado en http://localhost:" + puerto + "/productos");
+        System.out.println("✅ Servidor iniciado en http://localhost:" + puerto + "/productos (" + descripcion + ")");
+        return server;
+    }
+
+    private static void arrancarVirtual(int puerto) throws IOException {
+        ExecutorService executor = crearExecutorVirtual();
+        arrancar(puerto, executor, executor instanceof ThreadPoolExecutor ? "pool bajo demanda" : "hilos virtuales");
+    }
+
+    private static String descripcionPool(int hilos) {
+        return hilos > 0 ? "pool fijo de " + hilos + " hilos" : "hilo único";
+    }
+
+    /**
+     * 🧵 Crea el executor que atiende las peticiones.
+     * Con hilos <= 0 se devuelve null y HttpServer usa su único hilo despachador.
+     */
+    static ExecutorService crearExecutor(int hilos) {
+        if (hilos <= 0) return null;
+        return Executors.newFixedThreadPool(hilos, r -> {
+            Thread t = new Thread(r, "productos-worker");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 🪶 Un hilo virtual por petición: mientras una petición espera (p. ej. un body
+     * que llega despacio en readAllBytes) su hilo virtual se aparca y libera el
+     * hilo del sistema. El repositorio usa ReentrantLock y no synchronized, así
+     * que esas esperas no "clavan" el hilo portador.
+     * Se obtiene por reflexión para que el archivo siga compilando con Java 17;
+     * si la JVM no los tiene se avisa y se usa un pool que crece bajo demanda.
+     */
+    static ExecutorService crearExecutorVirtual() {
+        return crearExecutorVirtual("productos-worker");
+    }
+
+    static ExecutorService crearExecutorVirtual(String nombreHilo) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("⚠️ Esta JVM no tiene hilos virtuales (Java 21+): " + nombreHilo + " usa newCachedThreadPool");
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, nombreHilo);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * 📍 Enrutador de todas las operaciones de /productos
+     */
+    public static void handleProductos(HttpExchange ex) throws IOException {
+        atender(ex, rutas);
+    }
+
+    // 🔀 CORS + despacho con una tabla de rutas (la del nodo o la del repartidor)
+    static void atender(HttpExchange ex, Enrutador tabla) throws IOException {
+        // 🔐 CORS para permitir peticiones externas desde frontend (por ejemplo con fetch)
+        ex.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+        ex.getResponseHeaders().add("Access-Control-Allow-Methods", "GET,POST,PUT,DELETE,OPTIONS");
+        ex.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type, If-None-Match, Last-Event-ID");
+        ex.getResponseHeaders().add("Access-Control-Expose-Headers", "ETag");
+        if ("OPTIONS".equalsIgnoreCase(ex.getRequestMethod())) {
+            sinCuerpo(ex, 204); return;
+        }
+
+        // 🛣 Búsqueda en el árbol de rutas precompilado (sin split ni excepciones)
+        tabla.despachar(ex);
+    }
+
+    // 🗺 Tabla de rutas de /productos: plantilla → handler (y nombre para las métricas)
+    static final Enrutador rutas = new Enrutador()
+            .registrar("GET",    "/productos",            "listar",     (ex, id) -> listar(ex))
+            .registrar("POST",   "/productos",            "crear",      (ex, id) -> crear(ex))
+            .registrar("GET",    "/productos/mascaros",   "mascaros",   (ex, id) -> filtrarPorPrecio(ex))
+            .registrar("POST",   "/productos/_bulk",      "bulk",       (ex, id) -> cargaMasiva(ex))
+            .registrar("GET",    "/productos/buscar",     "buscar",     (ex, id) -> buscar(ex))
+            .registrar("GET",    "/productos/stats",      "stats",      (ex, id) -> estadisticas(ex))
+            .registrar("GET",    "/productos/top",        "top",        (ex, id) -> top(ex))
+            .registrar("GET",    "/productos/cambios",    "cambios",    (ex, id) -> cambios(ex))
+            .registrar("GET",    "/productos/{id:long}",  "obtener",    UT3_ApiRestProductos::obtener)
+            .registrar("PUT",    "/productos/{id:long}",  "actualizar", UT3_ApiRestProductos::actualizar)
+            .registrar("DELETE", "/productos/{id:long}",  "eliminar",   UT3_ApiRestProductos::eliminar)
+            .registrar("POST",   "/productos/{id:long}/reservar", "reservar", (ex, id) -> moverStock(ex, id, -1))
+            .registrar("POST",   "/productos/{id:long}/liberar",  "liberar",  (ex, id) -> moverStock(ex, id, +1));
+
+    // 🎯 Handler de una ruta: recibe el {id:long} de la plantilla (o -1 si no tiene)
+    @FunctionalInterface
+    interface Manejador {
+        void atender(HttpExchange ex, long id) throws IOException;
+    }
+
+    /**
+     * 🗺 Enrutador con árbol (trie) de plantillas precompilado
+     * - Cada nodo es un tramo de la ruta: literal ("mascaros") o parámetro {nombre:long}
+     * - Al buscar se recorre el path carácter a carácter: no se crean arrays ni
+     *   substrings y el ID se convierte en el sitio, sin excepciones
+     * - Los literales tienen prioridad sobre el parámetro (/productos/mascaros)
+     * - Ruta inexistente → 404, ID no numérico → 400, método no registrado → 405
+     */
+    static class Enrutador {
+        record Ruta(String nombre, Manejador manejador) {}
+
+        private static final class Nodo {
+            String[] literales = new String[0];
+            Nodo[] hijos = new Nodo[0];
+            Nodo parametro;                                   // hijo {x:long}
+            final Map<String, Ruta> metodos = new HashMap<>();
+
+            Nodo literal(String tramo) {
+                for (int i = 0; i < literales.length; i++) if (literales[i].equals(tramo)) return hijos[i];
+                literales = Arrays.copyOf(literales, literales.length + 1);
+                hijos = Arrays.copyOf(hijos, hijos.length + 1);
+                literales[literales.length - 1] = tramo;
+                return hijos[hijos.length - 1] = new Nodo();
+            }
+        }
+
+        private final Nodo raiz = new Nodo();
+
+        Enrutador registrar(String metodo, String plantilla, String nombre, Manejador manejador) {
+            Nodo n = raiz;
+            for (String tramo : plantilla.split("/")) { // ✔️ solo al registrar, una vez
+                if (tramo.isEmpty()) continue;
+                if (tramo.startsWith("{") && tramo.endsWith(":long}")) {
+                    if (n.parametro == null) n.parametro = new Nodo();
+                    n = n.parametro;
+                } else n = n.literal(tramo);
+            }
+            if (n.metodos.put(metodo, new Ruta(nombre, manejador)) != null)
+                throw new IllegalStateException("Ruta duplicada: " + metodo + " " + plantilla);
+            return this;
+        }
+
+        void despachar(HttpExchange ex) throws IOException {
+            String path = ex.getRequestURI().getPath();
+            Nodo n = raiz;
+            long id = -1;
+            boolean idInvalido = false;
+            int i = 0, fin = path.length();
+            while (n != null && i < fin) {
+                if (path.charAt(i) == '/') { i++; continue; }
+                int j = i;
+                while (j < fin && path.charAt(j) != '/') j++;
+                Nodo sig = null;
+                for (int k = 0; k < n.literales.length && sig == null; k++) {
+                    String lit = n.literales[k];
+                    if (lit.length() == j - i && path.regionMatches(i, lit, 0, j - i)) sig = n.hijos[k];
+                }
+                if (sig == null && n.parametro != null) {
+                    id = parsearLong(path, i, j);
+                    if (id != NO_NUMERO) sig = n.parametro; else idInvalido = true;
+                }
+                n = sig;
+                i = j;
+            }
+            if (n == null || n.metodos.isEmpty()) {
+                if (idInvalido) responder(ex, 400, jsonError("ID inválido o recurso no encontrado"));
+                else responder(ex, 404, jsonError("Ruta no válida"));
+                return;
+            }
+            Ruta ruta = n.metodos.get(ex.getRequestMethod());
+            if (ruta == null) { metodoNoPermitido(ex); return; }
+            Metricas.ruta(ruta.nombre());
+            ruta.manejador().atender(ex, id);
+        }
+
+        static final long NO_NUMERO = Long.MIN_VALUE;
+
+        // 🔢 Entero en path[desde, hasta) o NO_NUMERO si no lo es (sin excepciones)
+        //    Un negativo (/productos/-1) se acepta como con Long.parseLong: ese ID no existe → 404
+        static long parsearLong(String path, int desde, int hasta) {
+            boolean negativo = desde < hasta && path.charAt(desde) == '-';
+            if (negativo) desde++;
+            if (desde == hasta || hasta - desde > 19) return NO_NUMERO;
+            long v = 0;
+            for (int k = desde; k < hasta; k++) {
+                int d = path.charAt(k) - '0';
+                if (d < 0 || d > 9) return NO_NUMERO;
+                if (v > (Long.MAX_VALUE - d) / 10) return NO_NUMERO;
+                v = v * 10 + d;
+            }
+            return negativo ? -v : v;
+        }
+    }
+
+    // 🔍 GET /productos (streaming: cada producto se escribe directamente al socket)
+    // 📑 GET /productos?limit=N[&after=cursor] → {"datos":[...],"next":"cursor"|null}
+    private static void listar(HttpExchange ex) throws IOException {
+        if (noModificado(ex, etagCatalogo(ex))) return;
+        Map<String,String> params = queryToMap(ex.getRequestURI().getQuery());
+        if (!params.containsKey("limit") && !params.containsKey("after")) {
+            try (SalidaJson out = SalidaJson.abrir(ex, 200)) {
+                for (Producto p : productos.todos()) out.elemento(p.toJsonBytes());
+            }
+            return;
+        }
+        int limit;
+        long despuesDe;
+        try {
+            limit = Integer.parseInt(params.getOrDefault("limit", String.valueOf(LIMITE_PAGINA)));
+            if (limit < 1 || limit > LIMITE_PAGINA)
+                throw new IllegalArgumentException("limit debe estar entre 1 y " + LIMITE_PAGINA);
+            despuesDe = params.containsKey("after") ? Cursor.decodificar(params.get("after")) : 0;
+        } catch (IllegalArgumentException e) {
+            responder(ex, 400, jsonError("Paginación inválida: " + e.getMessage())); return;
+        }
+        // 🧭 Se parte del mapa ordenado por ID: solo se recorren los elementos de la página
+        Iterator<Producto> it = productos.despuesDe(despuesDe).iterator();
+        try (SalidaJson out = SalidaJson.abrirPagina(ex, 200)) {
+            long ultimo = despuesDe;
+            for (int n = 0; n < limit && it.hasNext(); n++) {
+                Producto p = it.next();
+                out.elemento(p.toJsonBytes());
+                ultimo = p.getId();
+            }
+            out.siguiente(it.hasNext() ? Cursor.codificar(ultimo) : null);
+        }
+    }
+
+    // 🔍 GET /productos/{id}
+    private static void obtener(HttpExchange ex, long id) throws IOException {
+        Producto p = productos.obtener(id);
+        if (p == null) responder(ex, 404, jsonError("Producto no encontrado"));
+        else if (!noModificado(ex, etag(p))) responder(ex, 200, p.toJsonBytes());
+    }
+
+    // 🧾 POST /productos (crear nuevo)
+    private static void crear(HttpExchange ex) throws IOException {
+        byte[] buf = buffers.tomar();
+        try {
+            int n = leerCuerpo(ex, buf);
+            if (n < 0) { cuerpoDemasiadoGrande(ex, buf.length); return; }
+            Producto p = productos.crear(Producto.fromJson(buf, 0, n));
+            ex.getResponseHeaders().set("ETag", etag(p));
+            responder(ex, 201, p.toJsonBytes());
+        } catch (IllegalArgumentException e) {
+            responder(ex, 400, jsonError(e.getMessage()));
+        } finally {
+            buffers.devolver(buf);
+        }
+    }
+
+    // ♻️ PUT /productos/{id} (actualizar)
+    //    Con If-None-Match: * solo crea (y solo el repartidor): 201 si el ID estaba libre, 412 si ya existe
+    private static void actualizar(HttpExchange ex, long id) throws IOException {
+        if ("*".equals(ex.getRequestHeaders().getFirst("If-None-Match"))) { crearConId(ex, id); return; }
+        if (productos.obtener(id) == null) {
+            responder(ex, 404, jsonError("Producto no encontrado")); return;
+        }
+        byte[] buf = buffers.tomar();
+        try {
+            int n = leerCuerpo(ex, buf);
+            if (n < 0) { cuerpoDemasiadoGrande(ex, buf.length); return; }
+            Producto p = Producto.fromJson(buf, 0, n);
+            // ⚠️ Puede haberse borrado mientras leíamos el body: replace() no lo resucita
+            if (!productos.actualizar(id, p)) {
+                responder(ex, 404, jsonError("Producto no encontrado")); return;
+            }
+            ex.getResponseHeaders().set("ETag", etag(p));
+            responder(ex, 200, p.toJsonBytes());
+        } catch (IllegalArgumentException e) {
+            responder(ex, 400, jsonError(e.getMessage()));
+        } finally {
+            buffers.devolver(buf);
+        }
+    }
+
+    // 🔑 Clave compartida con el repartidor (él la genera para los nodos que lanza)
+    static final String CLAVE_REPARTIDOR = System.getenv("CLAVE_REPARTIDOR");
+
+    /**
+     * 🆕 PUT /productos/{id} + If-None-Match: * → alta con el ID elegido por el repartidor
+     * - Solo con su clave (X-Clave-Repartidor): él reparte los IDs y, al rebalancear,
+     *   copia a un nodo nuevo IDs muy por encima de su contador
+     * - Sin ella → 403, sea cual sea el ID: un cliente no puede disparar el contador
+     *   (con ALMACEN=columnar, un ID enorme reservaría segmentos gigantes y cada listado
+     *   recorrería miles de millones de filas vacías) ni resucitar un ID ya borrado
+     */
+    private static void crearConId(HttpExchange ex, long id) throws IOException {
+        byte[] buf = buffers.tomar();
+        try {
+            int n = leerCuerpo(ex, buf);
+            if (n < 0) { cuerpoDemasiadoGrande(ex, buf.length); return; }
+            if (id <= 0) { responder(ex, 400, jsonError("ID inválido")); return; }
+            if (!desdeRepartidor(ex)) {
+                responder(ex, 403, jsonError("Solo el repartidor puede crear con un ID elegido")); return;
+            }
+            Producto p = Producto.fromJson(buf, 0, n);
+            if (!productos.crearSiNoExiste(id, p)) {
+                responder(ex, 412, jsonError("El producto ya existe")); return;
+            }
+            ex.getResponseHeaders().set("ETag", etag(p));
+            responder(ex, 201, p.toJsonBytes());
+        } catch (IllegalArgumentException e) {
+            responder(ex, 400, jsonError(e.getMessage()));
+        } finally {
+            buffers.devolver(buf);
+        }
+    }
+
+    // 🔑 Comparación en tiempo constante: no revela cuántos caracteres acierta un intento
+    private static boolean desdeRepartidor(HttpExchange ex) {
+        String clave = ex.getRequestHeaders().getFirst("X-Clave-Repartidor");
+        return CLAVE_REPARTIDOR != null && !CLAVE_REPARTIDOR.isEmpty() && clave != null
+                && MessageDigest.isEqual(clave.getBytes(StandardCharsets.UTF_8), CLAVE_REPARTIDOR.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 📥 Lee el body en un buffer del pool, sin pasar nunca de buf.length bytes
+     * - Content-Length mayor que el buffer → -1 antes de leer nada (413 inmediato)
+     * - Sin Content-Length (chunked) se lee hasta llenar el buffer: si aún queda → -1
+     * - Content-Length no numérico o body más corto de lo anunciado → 400
+     * Devuelve los bytes leídos; el JSON se analiza directamente sobre el buffer.
+     */
+    static int leerCuerpo(HttpExchange ex, byte[] buf) throws IOException {
+        long anunciado = longitudAnunciada(ex);
+        if (anunciado > buf.length) return -1;
+        InputStream in = ex.getRequestBody();
+        int n = in.readNBytes(buf, 0, buf.length);
+        if (anunciado >= 0 && n < anunciado) throw new IllegalArgumentException("Body incompleto");
+        if (n == buf.length && in.read() >= 0) return -1;
+        return n;
+    }
+
+    // 📏 Content-Length de la petición o -1 si no viene (chunked)
+    static long longitudAnunciada(HttpExchange ex) {
+        String cl = ex.getRequestHeaders().getFirst("Content-Length");
+        if (cl == null) return -1;
+        try {
+            long n = Long.parseLong(cl.trim());
+            if (n >= 0) return n;
+        } catch (NumberFormatException ignored) {}
+        throw new IllegalArgumentException("Content-Length inválido");
+    }
+
+    /**
+     * 🚫 413: se responde sin leer el resto del body y se pide cerrar la conexión
+     * (el servidor descarta lo que quede sin retener memoria del cliente)
+     */
+    static void cuerpoDemasiadoGrande(HttpExchange ex, long maximo) throws IOException {
+        cuerpoDemasiadoGrande(ex, "Body demasiado grande (máx " + maximo + " bytes)");
+    }
+
+    static void cuerpoDemasiadoGrande(HttpExchange ex, String mensaje) throws IOException {
+        ex.getResponseHeaders().set("Connection", "close");
+        responder(ex, 413, jsonError(mensaje));
+    }
+
+    // ❌ DELETE /productos/{id} (eliminar)
+    private static void eliminar(HttpExchange ex, long id) throws IOException {
+        if (!productos.eliminar(id))
+            responder(ex, 404, jsonError("Producto no encontrado"));
+        else responder(ex, 204, "");
+    }
+
+    /**
+     * 🔎 GET /productos/buscar?q=texto[&limit=N]
+     * - Subcadena del nombre sin distinguir mayúsculas ("orr" encuentra "Gorra")
+     * - Mínimo 3 caracteres (el índice es de trigramas); limit 1..100, 20 por defecto
+     * - Orden: nombre exacto, empieza por q, palabra que empieza por q, resto;
+     *   dentro de cada grupo, antes cuanto más a la izquierda y más corto el nombre
+     */
+    private static void buscar(HttpExchange ex) throws IOException {
+        Map<String,String> params = queryToMap(ex.getRequestURI().getQuery());
+        String q = params.getOrDefault("q", "").strip();
+        int limite;
+        try {
+            limite = Integer.parseInt(params.getOrDefault("limit", String.valueOf(BUSQUEDA_POR_DEFECTO)));
+        } catch (NumberFormatException e) {
+            limite = 0;
+        }
+        if (q.length() < IndiceNombres.MIN_CONSULTA) {
+            responder(ex, 400, jsonError("La búsqueda necesita al menos " + IndiceNombres.MIN_CONSULTA + " caracteres")); return;
+        }
+        if (limite < 1 || limite > LIMITE_BUSQUEDA) {
+            responder(ex, 400, jsonError("limit debe estar entre 1 y " + LIMITE_BUSQUEDA)); return;
+        }
+        if (noModificado(ex, etagCatalogo(ex))) return;
+        try (SalidaJson out = SalidaJson.abrir(ex, 200)) {
+            for (Producto p : productos.buscar(q, limite)) out.elemento(p.toJsonBytes());
+        }
+    }
+
+    /**
+     * 🏆 GET /productos/top?por=precio|stock&orden=desc|asc&k=N
+     * - Los k productos más caros/baratos o con más/menos stock (empates por ID)
+     * - por=precio (por defecto), orden=desc (por defecto), k entre 1 y 100 (10 por defecto)
+     */
+    private static void top(HttpExchange ex) throws IOException {
+        Map<String,String> params = queryToMap(ex.getRequestURI().getQuery());
+        String por = params.getOrDefault("por", "precio");
+        String orden = params.getOrDefault("orden", "desc");
+        int k;
+        try {
+            k = Integer.parseInt(params.getOrDefault("k", String.valueOf(TOP_POR_DEFECTO)));
+        } catch (NumberFormatException e) {
+            k = 0;
+        }
+        if (!por.equals("precio") && !por.equals("stock")) {
+            responder(ex, 400, jsonError("por debe ser precio o stock")); return;
+        }
+        if (!orden.equals("asc") && !orden.equals("desc")) {
+            responder(ex, 400, jsonError("orden debe ser asc o desc")); return;
+        }
+        if (k < 1 || k > LIMITE_TOP) {
+            responder(ex, 400, jsonError("k debe estar entre 1 y " + LIMITE_TOP)); return;
+        }
+        if (noModificado(ex, etagCatalogo(ex))) return;
+        try (SalidaJson out = SalidaJson.abrir(ex, 200)) {
+            for (Producto p : productos.top(por.equals("precio"), orden.equals("asc"), k)) out.elemento(p.toJsonBytes());
+        }
+    }
+
+    // 📈 GET /productos/stats (nº de productos, stock total, valor del inventario y precios)
+    private static void estadisticas(HttpExchange ex) throws IOException {
+        if (noModificado(ex, etagCatalogo(ex))) return;
+        responder(ex, 200, productos.estadisticas().toJson(productos.siguienteId()));
+    }
+
+    /**
+     * 📡 GET /productos/cambios (text/event-stream): altas, cambios y bajas al momento
+     * - Cada evento lleva id creciente; el navegador (EventSource) lo reenvía al
+     *   reconectar en Last-Event-ID (o ?desde=N) y se le mandan los que se perdió
+     * - Si esos eventos ya salieron del historial llega un evento "reinicio":
+     *   el cliente debe volver a pedir GET /productos
+     * - El handler solo suscribe y contesta las cabeceras; el envío sigue en un hilo
+     *   virtual por suscriptor (Java 21+; en Java 17, uno del sistema), así una
+     *   conexión larga no ocupa un hilo del pool de peticiones
+     */
+    private static void cambios(HttpExchange ex) throws IOException {
+        String ultimo = ex.getRequestHeaders().getFirst("Last-Event-ID");
+        if (ultimo == null) ultimo = queryToMap(ex.getRequestURI().getQuery()).get("desde");
+        long desde;
+        try {
+            desde = ultimo == null ? -1 : Long.parseLong(ultimo.trim());
+        } catch (NumberFormatException e) {
+            responder(ex, 400, jsonError("Last-Event-ID inválido")); return;
+        }
+        CanalCambios.Suscriptor s = productos.cambios().suscribir();
+        if (s == null) {
+            ex.getResponseHeaders().set("Retry-After", "5");
+            responder(ex, 503, jsonError("Demasiados suscriptores")); return;
+        }
+        ex.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        ex.getResponseHeaders().set("Cache-Control", "no-cache");
+        ex.sendResponseHeaders(200, 0);
+        CanalCambios.Emisores.POOL.execute(() -> emitir(ex, s, desde));
+    }
+
+    /**
+     * 📤 Bucle de envío de un suscriptor: lee del anillo del canal a su ritmo
+     * - Reanudación: si Last-Event-ID es de esta ejecución se sigue desde él
+     * - Si el anillo ya dio la vuelta (cliente lento o desconectado mucho rato) se
+     *   manda "reinicio" y se sigue desde el último evento; a la segunda vuelta se le
+     *   echa (con retry el navegador vuelve a conectar y recibe un reinicio)
+     * - Cada envío tiene plazo (PLAZO_ESCRITURA_SEGUNDOS): si el cliente dejó de leer,
+     *   el vigilante del canal interrumpe el envío y el hueco queda libre
+     * - Los eventos que ya esperan se agrupan en un solo flush; sin eventos, latidos
+     */
+    private static void emitir(HttpExchange ex, CanalCambios.Suscriptor s, long desde) {
+        CanalCambios canal = productos.cambios();
+        long enviado = s.inicio();
+        int vueltas = 0;
+        s.empezar();
+        try (OutputStream out = ex.getResponseBody()) {
+            s.escribiendo(true);
+            out.write(CanalCambios.REINTENTO);
+            if (desde >= 0 && desde < s.inicio()) enviado = desde;
+            else if (desde > s.inicio()) out.write(CanalCambios.reinicio(s.inicio())); // 🔄 de un arranque anterior
+            out.flush();
+            s.escribiendo(false);
+            while (true) {
+                CanalCambios.Evento e = canal.esperar(enviado + 1, CanalCambios.LATIDO_SEGUNDOS);
+                s.escribiendo(true);
+                if (e == null) {
+                    out.write(CanalCambios.LATIDO);       // 💓 mantiene viva la conexión (proxies)
+                } else {
+                    do {
+                        if (e.id() == enviado + 1) {
+                            out.write(e.bytes());
+                            enviado = e.id();
+                        } else {                        // 🐢 se perdieron eventos: el cliente recarga
+                            if (++vueltas > 1) return;  // 🚪 segunda vuelta: no da abasto, se le echa
+                            enviado = canal.ultimo();
+                            out.write(CanalCambios.reinicio(enviado));
+                        }
+                    } while ((e = canal.leer(enviado + 1)) != null);
+                }
+                out.flush();
+                s.escribiendo(false);
+            }
+        } catch (IOException | InterruptedException e) {
+            // 🔌 El cliente cerró la conexión o el vigilante cortó un envío atascado
+        } finally {
+            canal.baja(s);
+            ex.close();
+        }
+    }
+
+    static final int BUSQUEDA_POR_DEFECTO = 20, LIMITE_BUSQUEDA = 100;
+    static final int TOP_POR_DEFECTO = 10, LIMITE_TOP = 100;
+
+    /**
+     * 🛒 POST /productos/{id}/reservar?cantidad=N  (resta N al stock)
+     *    POST /productos/{id}/liberar?cantidad=N   (devuelve N al stock)
+     * - cantidad por defecto 1; debe ser un entero positivo (si no → 400)
+     * - 409 si no hay stock suficiente: nunca baja de 0
+     * - Atómico sin leer-modificar-PUT: no se pierden reservas con miles de compradores
+     */
+    private static void moverStock(HttpExchange ex, long id, int signo) throws IOException {
+        int cantidad;
+        try {
+            cantidad = Integer.parseInt(queryToMap(ex.getRequestURI().getQuery()).getOrDefault("cantidad", "1"));
+        } catch (NumberFormatException e) {
+            cantidad = 0;
+        }
+        if (cantidad <= 0) {
+            responder(ex, 400, jsonError("Parámetro cantidad inválido")); return;
+        }
+        try {
+            Producto p = productos.ajustarStock(id, signo * cantidad);
+            if (p == null) { responder(ex, 404, jsonError("Producto no encontrado")); return; }
+            ex.getResponseHeaders().set("ETag", etag(p));
+            responder(ex, 200, p.toJsonBytes());
+        } catch (IllegalStateException e) {
+            responder(ex, 409, jsonError(e.getMessage()));
+        }
+    }
+
+    // 🎯 GET /productos/mascaros?precio=XX[&precioMax=YY] (ordenados por precio)
+    private static void filtrarPorPrecio(HttpExchange ex) throws IOException {
+        String query = ex.getRequestURI().getQuery();
+        double min, max;
+        try {
+            Map<String,String> params = queryToMap(query);
+            min = Double.parseDouble(params.getOrDefault("precio","0"));
+            max = params.containsKey("precioMax") ? Double.parseDouble(params.get("precioMax"))
+                                                  : Double.POSITIVE_INFINITY;
+        } catch (Exception e) {
+            responder(ex, 400, jsonError("Parámetro precio inválido")); return;
+        }
+        if (noModificado(ex, etagCatalogo(ex))) return;
+        try (SalidaJson out = SalidaJson.abrir(ex, 200)) {
+            for (Producto p : productos.porPrecio(min, max)) out.elemento(p.toJsonBytes());
+        }
+    }
+
+    // 🏷 ETag de un producto: cambia con cada escritura de ese ID
+    static String etag(Producto p) {
+        return "\"p" + p.getId() + "-" + p.getVersion() + "\"";
+    }
+
+    /**
+     * 🏷 ETag de una consulta sobre el catálogo: versión global + query.
+     * La versión se lee ANTES de serializar: si entra un cambio a mitad, el cliente
+     * recibe un ETag antiguo y en el siguiente sondeo vuelve a descargar (nunca un 304 falso).
+     */
+    static String etagCatalogo(HttpExchange ex) {
+        String q = ex.getRequestURI().getRawQuery();
+        long v = productos.version();
+        return q == null ? "\"c" + v + "\"" : "\"c" + v + "-" + Integer.toHexString(q.hashCode()) + "\"";
+    }
+
+    /**
+     * 🔁 Añade la cabecera ETag y, si coincide con If-None-Match, responde 304 sin cuerpo.
+     * Devuelve true cuando ya se ha respondido.
+     */
+    static boolean noModificado(HttpExchange ex, String etag) throws IOException {
+        ex.getResponseHeaders().set("ETag", etag);
+        String cabecera = ex.getRequestHeaders().getFirst("If-None-Match");
+        if (cabecera == null) return false;
+        for (String candidato : cabecera.split(",")) {
+            String c = candidato.trim();
+            if (c.startsWith("W/")) c = c.substring(2);
+            if (c.equals("*") || c.equals(etag)) {
+                sinCuerpo(ex, 304);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static final int LIMITE_LOTE = 100_000; // 📏 Máximo de líneas por lote
+    static final long MAX_CUERPO_LOTE = 64L << 20; // 📏 Máximo de bytes anunciados por lote (64 MB)
+
+    /**
+     * 📦 POST /productos/_bulk (NDJSON: un objeto JSON por línea)
+     *   {"op":"crear","nombre":"A","precio":1.5,"stock":3}
+     *   {"op":"actualizar","id":7,"nombre":"B","precio":2}
+     *   {"op":"eliminar","id":9}
+     * El body se lee en streaming línea a línea; las líneas válidas se aplican por
+     * tramos (RepositorioProductos.aplicarLote) y se responde un resultado por línea (NDJSON).
+     */
+    private static void cargaMasiva(HttpExchange ex) throws IOException {
+        try {
+            if (longitudAnunciada(ex) > MAX_CUERPO_LOTE) { cuerpoDemasiadoGrande(ex, MAX_CUERPO_LOTE); return; }
+        } catch (IllegalArgumentException e) {
+            responder(ex, 400, jsonError(e.getMessage())); return;
+        }
+        List<OperacionLote> lote = new ArrayList<>();
+        byte[] buf = buffers.tomar();
+        try {
+            LectorLineas lineas = new LectorLineas(ex.getRequestBody(), buf);
+            int n = 0;
+            while (lineas.siguiente()) {
+                n++;
+                if (lineas.vacia()) continue;
+                if (lote.size() == LIMITE_LOTE) {
+                    cuerpoDemasiadoGrande(ex, "Máximo " + LIMITE_LOTE + " operaciones por lote"); return;
+                }
+                lote.add(OperacionLote.leer(n, lineas.datos(), lineas.inicio(), lineas.fin()));
+            }
+        } catch (IllegalArgumentException e) {
+            // ✂️ El body se dejó a medias: lo que queda no debe leerse como otra petición
+            ex.getResponseHeaders().set("Connection", "close");
+            responder(ex, 400, jsonError(e.getMessage())); return;
+        } finally {
+            buffers.devolver(buf);
+        }
+        StringBuilder sb = new StringBuilder(lote.size() * 32);
+        for (String r : productos.aplicarLote(lote)) sb.append(r).append('\n');
+        byte[] cuerpo = sb.toString().getBytes(StandardCharsets.UTF_8);
+        enviar(ex, 200, "application/x-ndjson; charset=utf-8", cuerpo, cuerpo.length);
+    }
+
+    private static void metodoNoPermitido(HttpExchange ex) throws IOException {
+        responder(ex, 405, jsonError("Método no permitido"));
+    }
+
+    private static void responder(HttpExchange ex, int status, String body) throws IOException {
+        responder(ex, status, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void responder(HttpExchange ex, int status, byte[] bytes) throws IOException {
+        responder(ex, status, bytes, bytes.length);
+    }
+
+    // 🗜 Cuerpos de al menos UMBRAL_GZIP bytes se comprimen si el cliente envía Accept-Encoding: gzip
+    private static void responder(HttpExchange ex, int status, byte[] bytes, int len) throws IOException {
+        enviar(ex, status, "application/json; charset=utf-8", bytes, len);
+    }
+
+    private static void enviar(HttpExchange ex, int status, String tipo, byte[] bytes, int len) throws IOException {
+        ex.getResponseHeaders().set("Content-Type", tipo);
+        if (len >= UMBRAL_GZIP) {
+            ex.getResponseHeaders().set("Vary", "Accept-Encoding");
+            if (aceptaGzip(ex)) {
+                ByteArrayOutputStream comprimido = new ByteArrayOutputStream(len / 4);
+                try (SalidaGzip gz = new SalidaGzip(comprimido)) { gz.write(bytes, 0, len); }
+                ex.getResponseHeaders().set("Content-Encoding", "gzip");
+                ex.sendResponseHeaders(status, comprimido.size());
+                try (OutputStream os = ex.getResponseBody()) { comprimido.writeTo(os); }
+                return;
+            }
+        }
+        if (len == 0) { sinCuerpo(ex, status); return; }
+        ex.sendResponseHeaders(status, len);
+        try (OutputStream os = ex.getResponseBody()) { os.write(bytes, 0, len); }
+    }
+
+    /**
+     * 📭 Respuesta sin cuerpo (204, 304...) que mantiene el keep-alive:
+     * - El HttpServer del JDK cierra la conexión si el cuerpo de la petición no llegó
+     *   al final: se vacía y se cierra ANTES de responder.
+     * - Con -1 el intercambio ya queda terminado; cerrar además getResponseBody()
+     *   lo terminaría dos veces y el JDK corta la conexión tras un 304.
+     */
+    static void sinCuerpo(HttpExchange ex, int status) throws IOException {
+        try (InputStream in = ex.getRequestBody()) { in.transferTo(OutputStream.nullOutputStream()); }
+        ex.sendResponseHeaders(status, -1);
+    }
+
+    private static String jsonError(String msg) {
+        return String.format("{\"error\":\"%s\"}", Producto.escaparJson(msg));
+    }
+
+    static final int LIMITE_PAGINA = 1000; // 📏 Tamaño máximo (y por defecto) de una página
+
+    /**
+     * 🧭 Cursor opaco de paginación: el último ID servido codificado en Base64 URL.
+     * El cliente no debe interpretarlo; solo devolverlo en el parámetro after.
+     */
+    static class Cursor {
+        static String codificar(long ultimoId) {
+            return Base64.getUrlEncoder().withoutPadding()
+                         .encodeToString(("p" + ultimoId).getBytes(StandardCharsets.US_ASCII));
+        }
+
+        static long decodificar(String cursor) {
+            String s = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.US_ASCII);
+            if (!s.startsWith("p")) throw new IllegalArgumentException("cursor desconocido");
+            return Long.parseLong(s.substring(1));
+        }
+    }
+
+    static Map<String,String> queryToMap(String q) throws UnsupportedEncodingException {
+        Map<String,String> m = new HashMap<>();
+        if (q == null) return m;
+        for (String param : q.split("&")) {
+            String[] kv = param.split("=");
+            if (kv.length>1) m.put(URLDecoder.decode(kv[0],"UTF-8"), URLDecoder.decode(kv[1],"UTF-8"));
+        }
+        return m;
+    }
+
+    // 💓 GET /salud: siempre 200 mientras el proceso atiende (no pasa por ControlAdmision)
+    static void handleSalud(HttpExchange ex, ControlAdmision admision) throws IOException {
+        responder(ex, 200, admision.estadoJson());
+    }
+
+    // 📊 GET /metrics (formato de texto de Prometheus)
+    static void handleMetricas(HttpExchange ex) throws IOException {
+        byte[] cuerpo = Metricas.exportar().getBytes(StandardCharsets.UTF_8);
+        enviar(ex, 200, "text/plain; version=0.0.4; charset=utf-8", cuerpo, cuerpo.length);
+    }
+
+    /**
+     * 📊 Métricas por ruta (listar, obtener, crear, actualizar, eliminar, mascaros...)
+     * - Contadores con LongAdder: sin contención aunque muchos hilos sumen a la vez
+     * - Nº de respuestas por código de estado
+     * - Bytes recibidos y enviados (cuerpo, tal cual viaja: comprimido si hay gzip)
+     * - Histograma de latencias sin candados para p50 / p99 / p999
+     * El Enrutador marca la ruta con Metricas.ruta(nombre) y FiltroMetricas mide.
+     * ⚠️ La ruta se pasa en un ThreadLocal (filtro y handler corren en el mismo hilo):
+     *    los atributos de HttpExchange del JDK se guardan en el HttpContext y los
+     *    comparten todas las peticiones a la vez.
+     */
+    static class Metricas {
+        private static final ThreadLocal<String> RUTA = new ThreadLocal<>();
+        static final ConcurrentHashMap<String, MetricasRuta> rutas = new ConcurrentHashMap<>();
+
+        static void ruta(String nombre) { RUTA.set(nombre); }
+
+        // 🔚 Devuelve la ruta marcada por el handler en este hilo y la limpia
+        static String rutaActual() {
+            String r = RUTA.get();
+            RUTA.remove();
+            return r != null ? r : "otra";
+        }
+
+        static MetricasRuta de(String ruta) { return rutas.computeIfAbsent(ruta, r -> new MetricasRuta()); }
+
+        static String exportar() {
+            StringBuilder sb = new StringBuilder(4096);
+            TreeMap<String, MetricasRuta> orden = new TreeMap<>(rutas);
+            sb.append("# HELP productos_peticiones_total Peticiones atendidas por ruta y código de estado\n");
+            sb.append("# TYPE productos_peticiones_total counter\n");
+            orden.forEach((ruta, m) -> {
+                for (int c = 100; c < 600; c++) {
+                    long n = m.codigos.get(c);
+                    if (n > 0) sb.append("productos_peticiones_total{ruta=\"").append(ruta)
+                                 .append("\",codigo=\"").append(c).append("\"} ").append(n).append('\n');
+                }
+            });
+            sb.append("# HELP productos_bytes_recibidos_total Bytes de cuerpo recibidos\n");
+            sb.append("# TYPE productos_bytes_recibidos_total counter\n");
+            orden.forEach((ruta, m) -> sb.append("productos_bytes_recibidos_total{ruta=\"").append(ruta)
+                                         .append("\"} ").append(m.bytesEntrada.sum()).append('\n'));
+            sb.append("# HELP productos_bytes_enviados_total Bytes de cuerpo enviados\n");
+            sb.append("# TYPE productos_bytes_enviados_total counter\n");
+            orden.forEach((ruta, m) -> sb.append("productos_bytes_enviados_total{ruta=\"").append(ruta)
+                                         .append("\"} ").append(m.bytesSalida.sum()).append('\n'));
+            sb.append("# HELP productos_latencia_segundos Latencia de las peticiones por ruta\n");
+            sb.append("# TYPE productos_latencia_segundos summary\n");
+            orden.forEach((ruta, m) -> {
+                long[] copia = m.latencias.copiar();
+                for (double q : new double[] {0.5, 0.99, 0.999})
+                    sb.append("productos_latencia_segundos{ruta=\"").append(ruta).append("\",quantile=\"").append(q)
+                      .append("\"} ").append(Histograma.percentil(copia, q) / 1e6).append('\n');
+                sb.append("productos_latencia_segundos_sum{ruta=\"").append(ruta).append("\"} ")
+                  .append(m.nanosTotales.sum() / 1e9).append('\n');
+                sb.append("productos_latencia_segundos_count{ruta=\"").append(ruta).append("\"} ")
+                  .append(m.peticiones.sum()).append('\n');
+            });
+            return sb.toString();
+        }
+    }
+
+    static class MetricasRuta {
+        final LongAdder peticiones = new LongAdder();
+        final LongAdder nanosTotales = new LongAdder();
+        final LongAdder bytesEntrada = new LongAdder();
+        final LongAdder bytesSalida = new LongAdder();
+        final AtomicLongArray codigos = new AtomicLongArray(600);
+        final Histograma latencias = new Histograma();
+
+        void registrar(int codigo, long nanos, long entrada, long salida) {
+            peticiones.increment();
+            nanosTotales.add(nanos);
+            bytesEntrada.add(entrada);
+            bytesSalida.add(salida);
+            if (codigo >= 100 && codigo < 600) codigos.incrementAndGet(codigo);
+            latencias.registrar(nanos / 1000);
+        }
+    }
+
+    /**
+     * 📈 Histograma log-lineal de microsegundos (error relativo < 3,2 %)
+     * - Valores < 64 µs: un cubo por microsegundo
+     * - Después, cada potencia de 2 se divide en 32 cubos iguales
+     * Registrar es un incremento atómico en un array: sin candados ni objetos nuevos.
+     */
+    static class Histograma {
+        private static final int SUBCUBOS = 32;
+        private static final int CUBOS = 64 + (63 - 6) * SUBCUBOS;
+        private final AtomicLongArray cubos = new AtomicLongArray(CUBOS);
+
+        void registrar(long micros) {
+            cubos.incrementAndGet(indice(Math.max(0, micros)));
+        }
+
+        long[] copiar() {
+            long[] c = new long[CUBOS];
+            for (int i = 0; i < CUBOS; i++) c[i] = cubos.get(i);
+            return c;
+        }
+
+        static int indice(long v) {
+            if (v < 64) return (int) v;
+            int exp = 63 - Long.numberOfLeadingZeros(v);           // v está en [2^exp, 2^(exp+1))
+            int sub = (int) ((v >>> (exp - 5)) & (SUBCUBOS - 1));  // 5 bits siguientes al más alto
+            return 64 + (exp - 6) * SUBCUBOS + sub;
+        }
+
+        // 📏 Valor representativo (punto medio) de un cubo
+        static long valor(int indice) {
+            if (indice < 64) return indice;
+            int exp = (indice - 64) / SUBCUBOS + 6;
+            int sub = (indice - 64) % SUBCUBOS;
+            long ancho = 1L << (exp - 5);
+            return (1L << exp) + sub * ancho + ancho / 2;
+        }
+
+        // 🎯 Percentil q (0..1) en microsegundos a partir de una copia de los cubos
+        static long percentil(long[] c, double q) {
+            long total = 0;
+            for (long n : c) total += n;
+            if (total == 0) return 0;
+            long objetivo = (long) Math.ceil(q * total);
+            long acumulado = 0;
+            for (int i = 0; i < c.length; i++) {
+                acumulado += c[i];
+                if (acumulado >= objetivo) return valor(i);
+            }
+            return valor(c.length - 1);
+        }
+    }
+
+    /**
+     * ⏱ Filtro que mide cada petición de /productos: envuelve los flujos para
+     * contar bytes, cronometra la cadena y anota la ruta y el código de respuesta.
+     */
+    static class FiltroMetricas extends Filter {
+        @Override
+        public void doFilter(HttpExchange ex, Chain chain) throws IOException {
+            long inicio = System.nanoTime();
+            long[] bytes = new long[2]; // [0] entrada, [1] salida
+            ex.setStreams(new FilterInputStream(ex.getRequestBody()) {
+                @Override public int read() throws IOException {
+                    int c = super.read();
+                    if (c >= 0) bytes[0]++;
+                    return c;
+                }
+                @Override public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) bytes[0] += n;
+                    return n;
+                }
+            }, new FilterOutputStream(ex.getResponseBody()) {
+                @Override public void write(int c) throws IOException {
+                    out.write(c);
+                    bytes[1]++;
+                }
+                @Override public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    bytes[1] += len;
+                }
+            });
+            try {
+                chain.doFilter(ex);
+            } finally {
+                Metricas.de(Metricas.rutaActual())
+                        .registrar(ex.getResponseCode(), System.nanoTime() - inicio, bytes[0], bytes[1]);
+            }
+        }
+
+        @Override
+        public String description() { return "Métricas por ruta"; }
+    }
+
+    /**
+     * 🚦 Control de admisión de /productos: mejor rechazar pronto que responder tarde
+     * 1. Cubo de tokens por IP (TASA_IP peticiones/s, ráfaga RAFAGA_IP) → 429
+     *    Apagado por defecto: en local todo llega de 127.0.0.1 y frenaría benchmark y carga
+     * 2. Si la petición ya esperó en la cola del executor más que la latencia objetivo,
+     *    responder sería inútil: 503 inmediato (y el límite se recorta)
+     * 3. Límite de peticiones en curso que se adapta solo (LimitadorAimd) → 503
+     * Todas las respuestas de rechazo llevan Retry-After y cuestan casi nada.
+     */
+    static class ControlAdmision extends Filter {
+        private static final ThreadLocal<Long> ENCOLADA = new ThreadLocal<>();
+        private final LimitadorAimd limitador;
+        private final double tasaIp, rafagaIp;
+        private final ConcurrentHashMap<InetAddress, CuboTokens> cubos = new ConcurrentHashMap<>();
+        private final AtomicLong proximaLimpieza = new AtomicLong(System.nanoTime());
+        final LongAdder rechazadas429 = new LongAdder(), rechazadas503 = new LongAdder();
+
+        ControlAdmision(LimitadorAimd limitador, double tasaIp, double rafagaIp) {
+            this.limitador = limitador;
+            this.tasaIp = tasaIp;
+            this.rafagaIp = rafagaIp;
+        }
+
+        // ⚙️ LIMITE_CONCURRENCIA (máx. 1000), LATENCIA_OBJETIVO_MS (200), TASA_IP (0 = sin límite), RAFAGA_IP (2×tasa)
+        static ControlAdmision desdeEntorno() {
+            int max = entero("LIMITE_CONCURRENCIA", 1000);
+            long objetivoMs = entero("LATENCIA_OBJETIVO_MS", 200);
+            double tasa = entero("TASA_IP", 0);
+            double rafaga = entero("RAFAGA_IP", (int) (tasa * 2));
+            return new ControlAdmision(new LimitadorAimd(Math.min(4, max), max, objetivoMs * 1_000_000), tasa, Math.max(1, rafaga));
+        }
+
+        private static int entero(String variable, int porDefecto) {
+            try {
+                return Integer.parseInt(System.getenv(variable));
+            } catch (NumberFormatException e) {
+                return porDefecto;
+            }
+        }
+
+        /**
+         * ⏱ Envuelve el executor para anotar cuándo se encoló cada petición: el filtro
+         * corre ya en el hilo trabajador y sin esto no vería la espera en la cola.
+         */
+        static Executor marcarCola(Executor executor) {
+            return tarea -> {
+                long encolada = System.nanoTime();
+                executor.execute(() -> {
+                    ENCOLADA.set(encolada);
+                    try { tarea.run(); } finally { ENCOLADA.remove(); }
+                });
+            };
+        }
+
+        @Override
+        public void doFilter(HttpExchange ex, Chain chain) throws IOException {
+            long ahora = System.nanoTime();
+            Long encolada = ENCOLADA.get();
+            long espera = encolada == null ? 0 : ahora - encolada;
+
+            long faltaToken = tasaIp > 0 ? cubo(ex.getRemoteAddress().getAddress(), ahora).tomar(tasaIp, rafagaIp, ahora) : 0;
+            if (faltaToken > 0) {
+                rechazadas429.increment();
+                rechazar(ex, 429, "Demasiadas peticiones desde tu IP", faltaToken);
+                return;
+            }
+            if (espera > limitador.objetivoNanos) {
+                limitador.recortar(ahora);
+                rechazadas503.increment();
+                rechazar(ex, 503, "Servidor saturado", 1_000_000_000L);
+                return;
+            }
+            if (!limitador.adquirir()) {
+                rechazadas503.increment();
+                rechazar(ex, 503, "Servidor saturado", 1_000_000_000L);
+                return;
+            }
+            try {
+                chain.doFilter(ex);
+            } finally {
+                limitador.liberar(espera + System.nanoTime() - ahora);
+            }
+        }
+
+        private void rechazar(HttpExchange ex, int status, String mensaje, long reintentoNanos) throws IOException {
+            Metricas.ruta("rechazada");
+            ex.getResponseHeaders().set("Retry-After", String.valueOf(Math.max(1, (reintentoNanos + 999_999_999) / 1_000_000_000)));
+            responder(ex, status, jsonError(mensaje));
+        }
+
+        // 🪣 Cubo de la IP; de vez en cuando se olvidan las IPs que llevan un minuto sin pedir (su cubo estaría lleno)
+        private CuboTokens cubo(InetAddress ip, long ahora) {
+            long limpieza = proximaLimpieza.get();
+            if (ahora - limpieza > 0 && proximaLimpieza.compareAndSet(limpieza, ahora + 10_000_000_000L)) {
+                cubos.values().removeIf(c -> c.inactivo(ahora, 60_000_000_000L));
+            }
+            return cubos.computeIfAbsent(ip, k -> new CuboTokens(rafagaIp, ahora));
+        }
+
+        String estadoJson() {
+            return "{\"estado\":\"ok\",\"enCurso\":" + limitador.enCurso()
+                    + ",\"limite\":" + (int) limitador.limite()
+                    + ",\"rechazadas429\":" + rechazadas429.sum()
+                    + ",\"rechazadas503\":" + rechazadas503.sum() + "}";
+        }
+
+        @Override
+        public String description() { return "Control de admisión (AIMD + cubo de tokens por IP)"; }
+    }
+
+    /**
+     * 📈 Límite de concurrencia AIMD (como la ventana de congestión de TCP)
+     * - Respuesta dentro de la latencia objetivo y límite en uso → +1 por cada "límite"
+     *   respuestas (suma lineal)
+     * - Respuesta más lenta que el objetivo → ×0,9 (recorte multiplicativo), como mucho
+     *   una vez por intervalo objetivo para no desplomarse con una sola ráfaga
+     * El límite es un double guardado en un AtomicLong: se actualiza con CAS, sin candados.
+     */
+    static class LimitadorAimd {
+        final long objetivoNanos;
+        private final int minimo, maximo;
+        private final AtomicInteger enCurso = new AtomicInteger();
+        private final AtomicLong limite;
+        private final AtomicLong ultimoRecorte = new AtomicLong(System.nanoTime());
+
+        LimitadorAimd(int minimo, int maximo, long objetivoNanos) {
+            this.minimo = Math.max(1, minimo);
+            this.maximo = Math.max(this.minimo, maximo);
+            this.objetivoNanos = objetivoNanos;
+            this.limite = new AtomicLong(Double.doubleToLongBits(Math.min(this.maximo, Math.max(this.minimo, 16))));
+        }
+
+        double limite() { return Double.longBitsToDouble(limite.get()); }
+
+        int enCurso() { return enCurso.get(); }
+
+        boolean adquirir() {
+            int max = (int) limite();
+            for (int n = enCurso.get(); n < max; n = enCurso.get()) {
+                if (enCurso.compareAndSet(n, n + 1)) return true;
+            }
+            return false;
+        }
+
+        void liberar(long latenciaNanos) {
+            int n = enCurso.getAndDecrement();
+            if (latenciaNanos > objetivoNanos) recortar(System.nanoTime());
+            else if (n >= limite() / 2) ajustar(+1, 1.0);
+        }
+
+        void recortar(long ahora) {
+            long u = ultimoRecorte.get();
+            if (ahora - u >= objetivoNanos && ultimoRecorte.compareAndSet(u, ahora)) ajustar(0, 0.9);
+        }
+
+        // 🧮 nuevo = actual × factor + suma / actual, acotado a [minimo, maximo]
+        private void ajustar(double suma, double factor) {
+            while (true) {
+                long bits = limite.get();
+                double actual = Double.longBitsToDouble(bits);
+                double nuevo = Math.max(minimo, Math.min(maximo, actual * factor + suma / actual));
+                if (nuevo == actual || limite.compareAndSet(bits, Double.doubleToLongBits(nuevo))) return;
+            }
+        }
+    }
+
+    // 🪣 Cubo de tokens: se rellena a "tasa" por segundo hasta "rafaga"; cada petición gasta uno
+    static final class CuboTokens {
+        private double tokens;
+        private long ultimo;
+
+        CuboTokens(double rafaga, long ahora) {
+            this.tokens = rafaga;
+            this.ultimo = ahora;
+        }
+
+        // 0 si hay token; si no, nanosegundos hasta que lo haya
+        synchronized long tomar(double tasa, double rafaga, long ahora) {
+            tokens = Math.min(rafaga, tokens + (ahora - ultimo) * tasa / 1e9);
+            ultimo = ahora;
+            if (tokens >= 1) { tokens -= 1; return 0; }
+            return (long) Math.ceil((1 - tokens) / tasa * 1e9);
+        }
+
+        synchronized boolean inactivo(long ahora, long margen) { return ahora - ultimo > margen; }
+    }
+
+    /**
+     * ♻️ Pool de buffers de bytes reutilizables
+     * Evita reservar un buffer nuevo en cada petición; si el pool está vacío
+     * se crea uno y, al devolverlo, solo se guarda si queda hueco.
+     */
+    static class PoolBuffers {
+        private final ArrayBlockingQueue<byte[]> libres;
+        private final int tamanio;
+
+        PoolBuffers(int capacidad, int tamanio) {
+            this.libres = new ArrayBlockingQueue<>(capacidad);
+            this.tamanio = tamanio;
+        }
+
+        byte[] tomar() {
+            byte[] b = libres.poll();
+            return b != null ? b : new byte[tamanio];
+        }
+
+        void devolver(byte[] b) { libres.offer(b); }
+    }
+
+    static final PoolBuffers buffers = new PoolBuffers(64, 16 * 1024);
+
+    /**
+     * 🌊 Escritor de arrays JSON en streaming (Transfer-Encoding: chunked)
+     * - Cada elemento se copia a un buffer del pool y se vuelca al socket al llenarse
+     * - La memoria por petición es la del buffer, no la del catálogo completo
+     * - Las cabeceras se envían al primer volcado: si todo cabe en el buffer la
+     *   respuesta sale con Content-Length; si no, sendResponseHeaders(status, 0)
+     *   (longitud desconocida → chunked) y, si el cliente lo acepta, con gzip
+     */
+    static class SalidaJson implements Closeable {
+        private final HttpExchange ex;
+        private final int status;
+        private final byte[] buf;
+        private OutputStream out; // null hasta enviar cabeceras
+        private int pos;
+        private boolean primero = true;
+        private String sufijo = "]";
+
+        private SalidaJson(HttpExchange ex, int status, String prefijo) {
+            this.ex = ex;
+            this.status = status;
+            this.buf = buffers.tomar();
+            for (int i = 0; i < prefijo.length(); i++) buf[pos++] = (byte) prefijo.charAt(i);
+        }
+
+        static SalidaJson abrir(HttpExchange ex, int status) {
+            return new SalidaJson(ex, status, "[");
+        }
+
+        // 📑 Página: {"datos":[...],"next":...}; el cursor se fija con siguiente()
+        static SalidaJson abrirPagina(HttpExchange ex, int status) {
+            SalidaJson s = new SalidaJson(ex, status, "{\"datos\":[");
+            s.sufijo = "],\"next\":null}";
+            return s;
+        }
+
+        void siguiente(String cursor) {
+            sufijo = cursor == null ? "],\"next\":null}" : "],\"next\":\"" + cursor + "\"}";
+        }
+
+        void elemento(byte[] b) throws IOException {
+            if (!primero) escribir(',');
+            primero = false;
+            if (b.length > buf.length - pos) {
+                volcar();
+                if (b.length > buf.length) { out.write(b); return; }
+            }
+            System.arraycopy(b, 0, buf, pos, b.length);
+            pos += b.length;
+        }
+
+        private void escribir(char c) throws IOException {
+            if (pos == buf.length) volcar();
+            buf[pos++] = (byte) c;
+        }
+
+        private void volcar() throws IOException {
+            if (out == null) {
+                ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+                ex.getResponseHeaders().set("Vary", "Accept-Encoding");
+                boolean gzip = aceptaGzip(ex);
+                if (gzip) ex.getResponseHeaders().set("Content-Encoding", "gzip");
+                ex.sendResponseHeaders(status, 0);
+                out = gzip ? new SalidaGzip(ex.getResponseBody()) : ex.getResponseBody();
+            }
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                for (int i = 0; i < sufijo.length(); i++) escribir(sufijo.charAt(i));
+                if (out == null) responder(ex, status, buf, pos); // 📏 cupo entero en el buffer
+                else {
+                    volcar();
+                    out.close();
+                }
+            } finally {
+                buffers.devolver(buf);
+            }
+        }
+    }
+
+    static final int UMBRAL_GZIP = 1024; // 📏 Por debajo de este tamaño no compensa comprimir
+
+    // 🗜 ¿Admite el cliente gzip? (Accept-Encoding: gzip, deflate, br;q=0.5 ...)
+    static boolean aceptaGzip(HttpExchange ex) {
+        String cabecera = ex.getRequestHeaders().getFirst("Accept-Encoding");
+        if (cabecera == null) return false;
+        for (String parte : cabecera.split(",")) {
+            String[] trozos = parte.trim().split(";");
+            String codificacion = trozos[0].trim();
+            if (!codificacion.equalsIgnoreCase("gzip") && !codificacion.equals("*")) continue;
+            for (int i = 1; i < trozos.length; i++) {
+                String t = trozos[i].trim();
+                if (t.startsWith("q=")) {
+                    try { if (Double.parseDouble(t.substring(2)) <= 0) return false; }
+                    catch (NumberFormatException e) { return false; }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * ♻️ Pool de Deflater: crear uno reserva memoria nativa (zlib), así que se
+     * reutilizan con reset(). Un pool acotado sirve igual con hilos de plataforma
+     * que con hilos virtuales (un ThreadLocal crecería con cada hilo nuevo).
+     */
+    static class PoolDeflaters {
+        private final ArrayBlockingQueue<Deflater> libres;
+
+        PoolDeflaters(int capacidad) { libres = new ArrayBlockingQueue<>(capacidad); }
+
+        Deflater tomar() {
+            Deflater d = libres.poll();
+            return d != null ? d : new Deflater(Deflater.DEFAULT_COMPRESSION, true); // nowrap: cabecera gzip propia
+        }
+
+        void devolver(Deflater d) {
+            d.reset();
+            if (!libres.offer(d)) d.end();
+        }
+    }
+
+    static final PoolDeflaters deflaters = new PoolDeflaters(32);
+
+    /**
+     * 🗜 Flujo gzip (RFC 1952) sobre un Deflater del pool.
+     * GZIPOutputStream siempre crea su propio Deflater, por eso se escribe a mano:
+     * cabecera de 10 bytes + datos deflate + CRC32 y tamaño original.
+     */
+    static class SalidaGzip extends OutputStream {
+        private static final byte[] CABECERA = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+        private final OutputStream out;
+        private final Deflater deflater = deflaters.tomar();
+        private final CRC32 crc = new CRC32();
+        private final byte[] buf = buffers.tomar();
+        private boolean cerrado;
+
+        SalidaGzip(OutputStream out) throws IOException {
+            this.out = out;
+            out.write(CABECERA);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            crc.update(b, off, len);
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                int n = deflater.deflate(buf, 0, buf.length, Deflater.NO_FLUSH);
+                if (n > 0) out.write(buf, 0, n);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (cerrado) return;
+            cerrado = true;
+            try {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buf, 0, buf.length, Deflater.NO_FLUSH);
+                    if (n > 0) out.write(buf, 0, n);
+                }
+                escribirEnteroLE((int) crc.getValue());
+                escribirEnteroLE((int) deflater.getBytesRead()); // ISIZE: tamaño módulo 2^32
+                out.close();
+            } finally {
+                deflaters.devolver(deflater);
+                buffers.devolver(buf);
+            }
+        }
+
+        private void escribirEnteroLE(int v) throws IOException {
+            out.write(v & 0xff);
+            out.write((v >>> 8) & 0xff);
+            out.write((v >>> 16) & 0xff);
+            out.write((v >>> 24) & 0xff);
+        }
+    }
+
+    /**
+     * 🗄 Repositorio concurrente de productos
+     * - El almacenamiento físico es intercambiable (Almacen): mapa de objetos o columnas
+     * - AtomicLong: dos POST simultáneos nunca reciben el mismo ID
+     * - Los Producto guardados no se modifican: PUT sustituye el objeto entero
+     * - Las escrituras de un mismo ID se serializan con un candado por franja,
+     *   así los datos y sus índices nunca quedan descuadrados; las lecturas no bloquean
+     * - Cada escritura sella el producto con una versión nueva y, ya aplicada,
+     *   incrementa la versión global del catálogo (para ETag)
+     */
+    static class RepositorioProductos {
+        private final Almacen almacen;
+        private final AtomicLong contadorId = new AtomicLong(1);
+        private final AtomicLong sellos = new AtomicLong();          // 🏷 versiones de producto
+        private final AtomicLong versionCatalogo = new AtomicLong(); // 🏷 versión global
+        private final ReentrantLock[] franjas = new ReentrantLock[64];
+        private final IndiceNombres indiceNombres;
+        private final EstadisticasCatalogo estadisticas = new EstadisticasCatalogo();
+        private final CanalCambios cambios = new CanalCambios(1024, 10_000);
+
+        RepositorioProductos(Almacen almacen) {
+            this.almacen = almacen;
+            this.indiceNombres = new IndiceNombres(id -> {
+                Producto p = almacen.obtener(id);
+                return p == null ? null : p.getNombre();
+            });
+            for (int i = 0; i < franjas.length; i++) franjas[i] = new ReentrantLock();
+        }
+
+        private ReentrantLock franja(long id) {
+            return franjas[(int) (id & (franjas.length - 1))];
+        }
+
+        Producto obtener(long id) { return almacen.obtener(id); }
+
+        long version() { return versionCatalogo.get(); }
+
+        long siguienteId() { return contadorId.get(); }
+
+        int tamanio() { return almacen.tamanio(); }
+
+        Iterable<Producto> todos() { return almacen.despuesDe(0); }
+
+        EstadisticasCatalogo estadisticas() { return estadisticas; }
+
+        CanalCambios cambios() { return cambios; }
+
+        // 📑 Productos con ID > despuesDe, en orden de ID (vista perezosa, sin copia)
+        Iterable<Producto> despuesDe(long despuesDe) { return almacen.despuesDe(despuesDe); }
+
+        // 🎯 Productos con min <= precio <= max (ver Almacen.porPrecio)
+        Iterable<Producto> porPrecio(double min, double max) {
+            return min <= max ? almacen.porPrecio(min, max) : List.of();
+        }
+
+        /**
+         * 🔎 Hasta "limite" productos cuyo nombre contiene q (sin distinguir mayúsculas)
+         * - El índice da los candidatos; se confirma con el producto actual del almacén
+         *   (descarta coincidencias de trigramas desordenados y entradas a medio cambiar)
+         * - Montículo acotado: se guardan solo los "limite" mejores, nunca todos los aciertos
+         */
+        List<Producto> buscar(String q, int limite) {
+            String consulta = IndiceNombres.normalizar(q);
+            PriorityQueue<Acierto> mejores = new PriorityQueue<>(limite + 1, Acierto.ORDEN.reversed());
+            indiceNombres.candidatos(consulta, id -> {
+                Producto p = almacen.obtener(id);
+                if (p == null) return;
+                Acierto a = Acierto.de(p, consulta);
+                if (a == null) return;
+                mejores.add(a);
+                if (mejores.size() > limite) mejores.poll(); // 🗑 fuera el peor
+            });
+            List<Acierto> orden = new ArrayList<>(mejores);
+            orden.sort(Acierto.ORDEN);
+            List<Producto> res = new ArrayList<>(orden.size());
+            for (Acierto a : orden) res.add(a.producto());
+            return res;
+        }
+
+        /**
+         * 🏆 Los k primeros según precio o stock, ascendente o descendente
+         * - Por precio con índice ordenado (AlmacenMapa): se leen solo k entradas del índice
+         * - Si no: montículo acotado a k (nunca se ordena ni se copia el catálogo)
+         * - Catálogos grandes: cada núcleo llena su montículo con su trozo y luego se mezclan
+         */
+        List<Producto> top(boolean porPrecio, boolean ascendente, int k) {
+            Comparator<Producto> orden = porPrecio
+                    ? Comparator.comparingDouble(Producto::getPrecio).thenComparingLong(Producto::getId)
+                    : Comparator.comparingInt(Producto::getStock).thenComparingLong(Producto::getId);
+            if (!ascendente) orden = orden.reversed();
+            Iterable<Producto> indice = porPrecio ? almacen.ordenPorPrecio(ascendente) : null;
+            if (indice != null) {
+                List<Producto> res = new ArrayList<>(k);
+                for (Producto p : indice) {
+                    res.add(p);
+                    if (res.size() == k) break;
+                }
+                return res;
+            }
+            Comparator<Producto> cmp = orden;
+            MonticuloTop mejores;
+            if (almacen.tamanio() >= TOP_PARALELO && Runtime.getRuntime().availableProcessors() > 1) {
+                mejores = almacen.enParalelo().collect(() -> new MonticuloTop(k, cmp), MonticuloTop::add, MonticuloTop::unir);
+            } else {
+                mejores = new MonticuloTop(k, cmp);
+                for (Producto p : almacen.despuesDe(0)) mejores.add(p);
+            }
+            return mejores.ordenados();
+        }
+
+        Producto crear(Producto p) {
+            while (true) {
+                long id = contadorId.getAndIncrement();
+                ReentrantLock l = franja(id);
+                l.lock();
+                try {
+                    // 🆔 Un alta con ID (crearSiNoExiste) pudo ocuparlo entre el contador y la franja
+                    if (almacen.obtener(id) != null) continue;
+                    insertar(id, p);
+                    versionCatalogo.incrementAndGet();
+                    return p;
+                } finally { l.unlock(); }
+            }
+        }
+
+        // 🆕 Alta con un ID dado, solo si está libre; el contador salta por encima para no repetirlo
+        boolean crearSiNoExiste(long id, Producto p) {
+            ReentrantLock l = franja(id);
+            l.lock();
+            try {
+                if (almacen.obtener(id) != null) return false;
+                insertar(id, p);
+                contadorId.accumulateAndGet(id + 1, Math::max);
+                versionCatalogo.incrementAndGet();
+                return true;
+            } finally { l.unlock(); }
+        }
+
+        // ♻️ Sustituye solo si el ID sigue existiendo
+        boolean actualizar(long id, Producto p) {
+            ReentrantLock l = franja(id);
+            l.lock();
+            try {
+                if (reemplazar(id, p) == null) return false;
+                versionCatalogo.incrementAndGet();
+                return true;
+            } finally { l.unlock(); }
+        }
+
+        /**
+         * 🛒 Suma delta al stock de un producto (negativo = reserva)
+         * - Solo se toma la franja de ESE ID: las ventas de productos distintos no se
+         *   esperan entre sí y no hay candado global
+         * - El producto publicado no se modifica: se sustituye por una copia con el stock
+         *   nuevo, así las lecturas (sin candado) ven el antes o el después, nunca a medias
+         * Devuelve la copia nueva, null si no existe o IllegalStateException si el stock
+         * quedaría negativo (o desbordaría).
+         */
+        Producto ajustarStock(long id, int delta) {
+            ReentrantLock l = franja(id);
+            l.lock();
+            try {
+                Producto actual = almacen.obtener(id);
+                if (actual == null) return null;
+                long stock = (long) actual.getStock() + delta;
+                if (stock < 0) throw new IllegalStateException("Stock insuficiente: quedan " + actual.getStock());
+                if (stock > Integer.MAX_VALUE) throw new IllegalStateException("Stock fuera de rango");
+                Producto nuevo = new Producto(id, actual.getNombre(), actual.getPrecio(), (int) stock, 0);
+                reemplazar(id, nuevo);
+                versionCatalogo.incrementAndGet();
+                return nuevo;
+            } finally { l.unlock(); }
+        }
+
+        boolean eliminar(long id) {
+            ReentrantLock l = franja(id);
+            l.lock();
+            try {
+                if (quitar(id) == null) return false;
+                versionCatalogo.incrementAndGet();
+                return true;
+            } finally { l.unlock(); }
+        }
+
+        static final int TRAMO_LOTE = 256; // 📏 Operaciones por confirmación de un lote
+
+        /**
+         * 📦 Aplica un lote por tramos de TRAMO_LOTE operaciones: cada tramo toma todas
+         * las franjas (en orden, sin riesgo de interbloqueo), se aplica sin que nadie se
+         * intercale y sube la versión del catálogo una vez.
+         * - El lote entero YA NO es una sola confirmación: entre tramos entran altas,
+         *   reservas y lecturas de otros clientes, que ven el lote a medio aplicar
+         * - Así un lote de 100 000 líneas frena a los demás escritores solo lo que
+         *   tarda un tramo (decenas de µs), no el lote completo
+         * Devuelve el resultado de cada operación en el mismo orden.
+         */
+        List<String> aplicarLote(List<OperacionLote> lote) {
+            List<String> resultados = new ArrayList<>(lote.size());
+            for (int desde = 0; desde < lote.size(); desde += TRAMO_LOTE)
+                aplicarTramo(lote.subList(desde, Math.min(lote.size(), desde + TRAMO_LOTE)), resultados);
+            return resultados;
+        }
+
+        private void aplicarTramo(List<OperacionLote> tramo, List<String> resultados) {
+            for (ReentrantLock l : franjas) l.lock();
+            try {
+                boolean cambios = false;
+                for (OperacionLote op : tramo) {
+                    if (op.error() != null) {
+                        resultados.add(op.resultado(400, "\"error\":\"" + Producto.escaparJson(op.error()) + "\""));
+                        continue;
+                    }
+                    boolean ok;
+                    long id = op.id();
+                    switch (op.tipo()) {
+                        case "crear" -> {
+                            id = contadorId.getAndIncrement();
+                            insertar(id, op.producto());
+                            ok = true;
+                        }
+                        case "actualizar" -> ok = reemplazar(id, op.producto()) != null;
+                        default -> ok = quitar(id) != null;
+                    }
+                    int status = !ok ? 404 : op.tipo().equals("crear") ? 201 : op.tipo().equals("actualizar") ? 200 : 204;
+                    resultados.add(op.resultado(status, ok ? "\"id\":" + id : "\"error\":\"Producto no encontrado\""));
+                    cambios |= ok;
+                }
+                if (cambios) versionCatalogo.incrementAndGet();
+            } finally {
+                for (int i = franjas.length - 1; i >= 0; i--) franjas[i].unlock();
+            }
+        }
+
+        /**
+         * 📂 Vuelve a meter productos de un snapshot CON SU ID (varios hilos a la vez,
+         * cada uno con su bloque). Índices y estadísticas se rellenan igual que en un
+         * alta, pero no se publican eventos de cambio: no es una modificación.
+         */
+        void restaurar(List<Producto> lote, long siguienteId) {
+            for (Producto p : lote) {
+                ReentrantLock l = franja(p.getId());
+                l.lock();
+                try {
+                    p.setVersion(sellos.incrementAndGet());
+                    almacen.guardar(p);
+                    indiceNombres.cambiar(p.getId(), null, p.getNombre());
+                    estadisticas.cambiar(null, p);
+                } finally { l.unlock(); }
+                contadorId.accumulateAndGet(p.getId() + 1, Math::max);
+            }
+            contadorId.accumulateAndGet(siguienteId, Math::max); // 🔒 nunca se reutiliza un ID
+            versionCatalogo.incrementAndGet();
+        }
+
+        // 🔧 Operaciones internas: se llaman siempre con la franja del ID tomada
+        private void insertar(long id, Producto p) {
+            p.setId(id);
+            p.setVersion(sellos.incrementAndGet());
+            almacen.guardar(p);
+            indiceNombres.cambiar(id, null, p.getNombre());
+            estadisticas.cambiar(null, p);
+            cambios.publicar("crear", id, p);
+        }
+
+        private Producto reemplazar(long id, Producto p) {
+            p.setId(id);
+            p.setVersion(sellos.incrementAndGet());
+            Producto anterior = almacen.sustituir(p);
+            if (anterior != null) {
+                indiceNombres.cambiar(id, anterior.getNombre(), p.getNombre());
+                estadisticas.cambiar(anterior, p);
+                cambios.publicar("actualizar", id, p);
+            }
+            return anterior;
+        }
+
+        private Producto quitar(long id) {
+            Producto borrado = almacen.borrar(id);
+            if (borrado != null) {
+                indiceNombres.cambiar(id, borrado.getNombre(), null);
+                estadisticas.cambiar(borrado, null);
+                cambios.publicar("eliminar", id, null);
+            }
+            return borrado;
+        }
+    }
+
+    /**
+     * 🧭 Repartidor (MODO=router): un proceso sin catálogo delante de N nodos UT3
+     * - Cada producto vive en UN nodo, elegido por su ID con hashing consistente
+     *   (AnilloHash): añadir o quitar un nodo solo mueve la parte de claves que le toca
+     * - Los IDs los reparte el repartidor: el alta se envía al dueño como
+     *   PUT /productos/{id} con If-None-Match: * (crear solo si no existe) y la clave
+     *   compartida en X-Clave-Repartidor (sin ella el nodo no acepta IDs nuevos)
+     * - /productos/{id} (GET, PUT, DELETE, reservar, liberar) se reenvía al dueño
+     * - GET /productos y /productos/mascaros se piden a todos los nodos a la vez y se
+     *   mezclan en streaming (mezcla de k listas ordenadas, por ID o por precio)
+     * - /admin/nodos: ver nodos (GET), añadir (POST {"url":...}) o quitar (DELETE ?url=)
+     * ⚠️ Mientras se rebalancea las escrituras esperan; las lecturas siguen con el anillo
+     *    viejo hasta que las copias están hechas
+     * ⚠️ /mascaros sale ordenado por precio si los nodos usan el almacén por defecto
+     * ⚠️ _bulk, buscar, stats, top y cambios responden 501 (no se reparten todavía)
+     */
+    static class Repartidor {
+        static final Duration TIEMPO_MAX = Duration.ofSeconds(10);
+        static final int PAGINA_MIGRACION = 1000;
+
+        static {
+            // ⏱ El HttpServer del JDK cierra las conexiones quietas a los 30 s: el cliente
+            //    debe soltarlas antes o reutilizaría una ya cerrada (EOF sin respuesta)
+            if (System.getProperty("jdk.httpclient.keepalive.timeout") == null)
+                System.setProperty("jdk.httpclient.keepalive.timeout", "20");
+        }
+
+        final HttpClient cliente = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(TIEMPO_MAX)
+                .executor(Executors.newCachedThreadPool(r -> {
+                    Thread t = new Thread(r, "repartidor-http");
+                    t.setDaemon(true);
+                    return t;
+                }))
+                .build();
+        volatile AnilloHash anillo;
+        final AtomicLong siguienteId = new AtomicLong(1);
+        final String clave;
+        // 🔒 Escrituras: lectura (muchas a la vez); rebalanceo: escritura (en exclusiva)
+        final ReentrantReadWriteLock migracion = new ReentrantReadWriteLock();
+        final Enrutador rutas = new Enrutador()
+                .registrar("GET",    "/productos",            "listar",     (ex, id) -> listar(ex))
+                .registrar("POST",   "/productos",            "crear",      (ex, id) -> crear(ex))
+                .registrar("GET",    "/productos/mascaros",   "mascaros",   (ex, id) -> mascaros(ex))
+                .registrar("POST",   "/productos/_bulk",      "bulk",       Repartidor::noDisponible)
+                .registrar("GET",    "/productos/buscar",     "buscar",     Repartidor::noDisponible)
+                .registrar("GET",    "/productos/stats",      "stats",      Repartidor::noDisponible)
+                .registrar("GET",    "/productos/top",        "top",        Repartidor::noDisponible)
+                .registrar("GET",    "/productos/cambios",    "cambios",    Repartidor::noDisponible)
+                .registrar("GET",    "/productos/{id:long}",  "obtener",    this::reenviar)
+                .registrar("PUT",    "/productos/{id:long}",  "actualizar", this::escribir)
+                .registrar("DELETE", "/productos/{id:long}",  "eliminar",   this::escribir)
+                .registrar("POST",   "/productos/{id:long}/reservar", "reservar", this::escribir)
+                .registrar("POST",   "/productos/{id:long}/liberar",  "liberar",  this::escribir);
+
+        Repartidor(List<String> nodos, String clave) throws IOException {
+            this.anillo = new AnilloHash(nodos);
+            this.clave = clave;
+            // 🆔 Se sigue por encima del mayor ID de cualquier nodo (sobrevive a reinicios)
+            for (String nodo : nodos) siguienteId.accumulateAndGet(leerEstadistica(nodo, "siguienteId"), Math::max);
+        }
+
+        /**
+         * 🚀 NODOS=N lanza N procesos hijo (esta misma clase) en PORT+1..PORT+N;
+         *    NODOS=url1,url2,... usa nodos ya arrancados
+         */
+        static void arrancar(int puerto, Executor executor, String descripcion) throws IOException {
+            String env = Optional.ofNullable(System.getenv("NODOS")).orElse("3").strip();
+            String clave = CLAVE_REPARTIDOR != null && !CLAVE_REPARTIDOR.isEmpty() ? CLAVE_REPARTIDOR : UUID.randomUUID().toString();
+            List<String> nodos = new ArrayList<>();
+            if (env.chars().allMatch(Character::isDigit)) {
+                for (int i = 1; i <= Integer.parseInt(env); i++) nodos.add(lanzarNodo(puerto + i, clave));
+            } else {
+                if (CLAVE_REPARTIDOR == null || CLAVE_REPARTIDOR.isEmpty())
+                    System.err.println("⚠️ Sin CLAVE_REPARTIDOR los nodos rechazarán (403) las altas con ID nuevo");
+                for (String url : env.split(",")) nodos.add(normalizar(url));
+            }
+            for (String nodo : nodos) esperarNodo(nodo);
+            Repartidor r = new Repartidor(nodos, clave);
+            HttpServer server = UT3_ApiRestProductos.arrancar(puerto, executor,
+                    descripcion + ", repartidor de " + nodos.size() + " nodos", ex -> atender(ex, r.rutas));
+            if (server != null) server.createContext("/admin/nodos", r::admin);
+        }
+
+        // 👶 Nodo hijo: mismo classpath, su puerto, su snapshot, la clave y sin límite por IP aunque el repartidor lo tenga (todo llega de él)
+        static String lanzarNodo(int puerto, String clave) throws IOException {
+            Path fuente = archivoFuente();
+            ProcessBuilder pb = new ProcessBuilder(
+                    Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-cp", System.getProperty("java.class.path"),
+                    fuente != null ? fuente.toString() : UT3_ApiRestProductos.class.getName());
+            Map<String, String> env = pb.environment();
+            env.remove("MODO");
+            env.remove("NODOS");
+            env.put("PORT", String.valueOf(puerto));
+            env.put("TASA_IP", "0");
+            env.put("CLAVE_REPARTIDOR", clave);
+            String snapshot = System.getenv("SNAPSHOT");
+            if (snapshot != null && !(snapshot.isBlank() || snapshot.equalsIgnoreCase("off")))
+                env.put("SNAPSHOT", "productos-" + puerto + ".snap");
+            Process hijo = pb.inheritIO().start();
+            Runtime.getRuntime().addShutdownHook(new Thread(hijo::destroy)); // 🛑 se apaga (y guarda) con el repartidor
+            return "http://localhost:" + puerto;
+        }
+
+        /**
+         * 📄 Con "java UT3_ApiRestProductos.java" la clase se compila en memoria y no hay
+         * .class en el classpath: el nodo hijo se lanza igual, desde el mismo .java
+         * (el lanzador de código fuente deja como origen de la clase el propio archivo)
+         */
+        static Path archivoFuente() {
+            try {
+                CodeSource origen = UT3_ApiRestProductos.class.getProtectionDomain().getCodeSource();
+                if (origen != null && origen.getLocation() != null && origen.getLocation().getPath().endsWith(".java"))
+                    return Path.of(origen.getLocation().toURI());
+            } catch (URISyntaxException | IllegalArgumentException | SecurityException ignored) {}
+            return null;
+        }
+
+        static String normalizar(String url) {
+            url = url.strip();
+            while (url.endsWith("/")) url = url.substring(0, url.length() - 1);
+            if (!url.startsWith("http://") && !url.startsWith("https://"))
+                throw new IllegalArgumentException("URL de nodo inválida: " + url);
+            return url;
+        }
+
+        // ⏳ Hasta 30 s a que el nodo conteste en /salud (los hijos tardan en arrancar)
+        static void esperarNodo(String nodo) throws IOException {
+            long limite = System.nanoTime() + 30_000_000_000L;
+            while (true) {
+                try {
+                    HttpURLConnection c = (HttpURLConnection) URI.create(nodo + "/salud").toURL().openConnection();
+                    c.setConnectTimeout(1000);
+                    if (c.getResponseCode() == 200) return;
+                } catch (IOException ignored) { }
+                if (System.nanoTime() > limite) throw new IOException("El nodo " + nodo + " no responde");
+                try { Thread.sleep(200); } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        // 📈 Un campo numérico de GET /productos/stats de un nodo
+        long leerEstadistica(String nodo, String campo) throws IOException {
+            HttpResponse<byte[]> r = enviarA(nodo, HttpRequest.newBuilder(URI.create(nodo + "/productos/stats")).GET());
+            if (r.statusCode() != 200) throw new IOException("stats de " + nodo + ": HTTP " + r.statusCode());
+            LectorJson json = new LectorJson(r.body(), 0, r.body().length);
+            json.inicioObjeto();
+            while (json.siguienteCampo()) {
+                if (json.claveEs(campo)) return json.leerLong();
+                json.saltarValor();
+            }
+            throw new IOException("stats de " + nodo + " sin " + campo);
+        }
+
+        HttpResponse<byte[]> enviarA(String nodo, HttpRequest.Builder peticion) throws IOException {
+            try {
+                return cliente.send(peticion.timeout(TIEMPO_MAX).build(), HttpResponse.BodyHandlers.ofByteArray());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Petición a " + nodo + " interrumpida");
+            } catch (IOException e) {
+                throw new IOException("Nodo no disponible: " + nodo, e);
+            }
+        }
+
+        // 📥 Body de la petición (acotado como en el nodo); null si ya se respondió 413
+        static byte[] cuerpo(HttpExchange ex) throws IOException {
+            byte[] buf = buffers.tomar();
+            try {
+                int n = leerCuerpo(ex, buf);
+                if (n < 0) { cuerpoDemasiadoGrande(ex, buf.length); return null; }
+                return Arrays.copyOf(buf, n);
+            } finally {
+                buffers.devolver(buf);
+            }
+        }
+
+        // ↪️ Reenvía la petición tal cual al dueño del ID y copia su respuesta
+        void reenviar(HttpExchange ex, long id) throws IOException {
+            byte[] cuerpo = cuerpo(ex);
+            if (cuerpo == null) return;
+            String nodo = anillo.dueno(id);
+            URI uri = ex.getRequestURI();
+            HttpRequest.Builder b = HttpRequest.newBuilder(URI.create(nodo + uri.getRawPath()
+                            + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery())))
+                    .method(ex.getRequestMethod(), cuerpo.length == 0 ? HttpRequest.BodyPublishers.noBody()
+                                                                      : HttpRequest.BodyPublishers.ofByteArray(cuerpo));
+            for (String h : List.of("Content-Type", "If-None-Match")) {
+                String v = ex.getRequestHeaders().getFirst(h);
+                if (v != null) b.header(h, v);
+            }
+            copiar(ex, enviarONodoCaido(ex, nodo, b));
+        }
+
+        // ✍️ Escrituras: nunca a la vez que un rebalanceo (podrían caer en el nodo que se vacía)
+        void escribir(HttpExchange ex, long id) throws IOException {
+            migracion.readLock().lock();
+            try { reenviar(ex, id); } finally { migracion.readLock().unlock(); }
+        }
+
+        // 🆕 PUT de alta con ID elegido (If-None-Match: *), firmado con la clave compartida
+        HttpRequest.Builder altaConId(String nodo, long id, byte[] json) {
+            return HttpRequest.newBuilder(URI.create(nodo + "/productos/" + id))
+                    .header("Content-Type", "application/json")
+                    .header("If-None-Match", "*")
+                    .header("X-Clave-Repartidor", clave)
+                    .PUT(HttpRequest.BodyPublishers.ofByteArray(json));
+        }
+
+        /**
+         * 🧾 POST /productos: el repartidor elige el ID y lo crea en su dueño
+         * Si el ID ya estaba ocupado (alguien dio altas directamente en un nodo) → 412
+         * y se prueba con el siguiente
+         */
+        void crear(HttpExchange ex) throws IOException {
+            byte[] cuerpo = cuerpo(ex);
+            if (cuerpo == null) return;
+            migracion.readLock().lock();
+            try {
+                for (int intento = 0; intento < 100; intento++) {
+                    long id = siguienteId.getAndIncrement();
+                    String nodo = anillo.dueno(id);
+                    HttpResponse<byte[]> r = enviarONodoCaido(ex, nodo, altaConId(nodo, id, cuerpo));
+                    if (r == null || r.statusCode() != 412) { copiar(ex, r); return; }
+                }
+                responder(ex, 503, jsonError("No se encontró un ID libre"));
+            } finally { migracion.readLock().unlock(); }
+        }
+
+        // 🔌 Si el nodo no contesta → 502 y null
+        HttpResponse<byte[]> enviarONodoCaido(HttpExchange ex, String nodo, HttpRequest.Builder b) throws IOException {
+            try {
+                return enviarA(nodo, b);
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                responder(ex, 502, jsonError(e.getMessage()));
+                return null;
+            }
+        }
+
+        // 🚧 Rutas del nodo que aún no se reparten (consúltalas en cada nodo directamente)
+        static void noDisponible(HttpExchange ex, long id) throws IOException {
+            responder(ex, 501, jsonError("No disponible en modo repartidor"));
+        }
+
+        static void copiar(HttpExchange ex, HttpResponse<byte[]> r) throws IOException {
+            if (r == null) return;
+            for (String h : List.of("ETag", "Retry-After")) r.headers().firstValue(h).ifPresent(v -> ex.getResponseHeaders().set(h, v));
+            String tipo = r.headers().firstValue("Content-Type").orElse("application/json; charset=utf-8");
+            enviar(ex, r.statusCode(), tipo, r.body(), r.body().length);
+        }
+
+        // 🔍 GET /productos[?limit=N&after=cursor]: cada nodo da su página y se mezclan por ID
+        void listar(HttpExchange ex) throws IOException {
+            Map<String,String> params = queryToMap(ex.getRequestURI().getQuery());
+            if (!params.containsKey("limit") && !params.containsKey("after")) {
+                abanico(ex, "/productos", Cabeza.POR_ID, Integer.MAX_VALUE, false);
+                return;
+            }
+            int limit;
+            try {
+                limit = Integer.parseInt(params.getOrDefault("limit", String.valueOf(LIMITE_PAGINA)));
+                if (limit < 1 || limit > LIMITE_PAGINA)
+                    throw new IllegalArgumentException("limit debe estar entre 1 y " + LIMITE_PAGINA);
+                if (params.containsKey("after")) Cursor.decodificar(params.get("after"));
+            } catch (IllegalArgumentException e) {
+                responder(ex, 400, jsonError("Paginación inválida: " + e.getMessage())); return;
+            }
+            // 🧭 El cursor es el último ID: vale igual en todos los nodos
+            abanico(ex, "/productos?" + ex.getRequestURI().getRawQuery(), Cabeza.POR_ID, limit, true);
+        }
+
+        // 🎯 GET /productos/mascaros?...: cada nodo da su tramo ordenado por precio y se mezclan
+        void mascaros(HttpExchange ex) throws IOException {
+            String q = ex.getRequestURI().getRawQuery();
+            abanico(ex, "/productos/mascaros" + (q == null ? "" : "?" + q), Cabeza.POR_PRECIO, Integer.MAX_VALUE, false);
+        }
+
+        /**
+         * 🌬 Pide la misma ruta a todos los nodos a la vez y mezcla las respuestas
+         * - Se leen como streams: de cada nodo solo hay en memoria su producto "en cabeza"
+         * - Montículo con la cabeza de cada nodo: sale la menor y entra la siguiente de su nodo
+         * - Un ID repetido (copiado durante un rebalanceo) sale una sola vez
+         */
+        void abanico(HttpExchange ex, String ruta, Comparator<Cabeza> orden, int limite, boolean pagina) throws IOException {
+            List<String> nodos = anillo.nodos;
+            List<CompletableFuture<HttpResponse<InputStream>>> pedidas = new ArrayList<>();
+            for (String nodo : nodos)
+                pedidas.add(cliente.sendAsync(HttpRequest.newBuilder(URI.create(nodo + ruta)).timeout(TIEMPO_MAX).GET().build(),
+                        HttpResponse.BodyHandlers.ofInputStream()));
+            List<LectorElementos> lectores = new ArrayList<>();
+            try {
+                for (int i = 0; i < nodos.size(); i++) {
+                    HttpResponse<InputStream> r;
+                    try {
+                        r = pedidas.get(i).get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    } catch (ExecutionException e) {
+                        responder(ex, 502, jsonError("Nodo no disponible: " + nodos.get(i))); return;
+                    }
+                    lectores.add(new LectorElementos(r.body()));
+                    if (r.statusCode() != 200) {   // 400 de parámetros: igual en todos, se devuelve tal cual
+                        byte[] error = r.body().readAllBytes();
+                        responder(ex, r.statusCode(), error);
+                        return;
+                    }
+                }
+                PriorityQueue<Cabeza> cabezas = new PriorityQueue<>(Math.max(1, lectores.size()), orden);
+                for (LectorElementos l : lectores) Cabeza.siguiente(l, cabezas);
+                try (SalidaJson out = pagina ? SalidaJson.abrirPagina(ex, 200) : SalidaJson.abrir(ex, 200)) {
+                    long ultimo = -1;
+                    int n = 0;
+                    while (n < limite && !cabezas.isEmpty()) {
+                        Cabeza c = cabezas.poll();
+                        if (c.id() != ultimo) {
+                            out.elemento(c.json());
+                            ultimo = c.id();
+                            n++;
+                        }
+                        Cabeza.siguiente(c.lector(), cabezas);
+                    }
+                    if (pagina) {
+                        boolean hayMas = !cabezas.isEmpty();
+                        for (LectorElementos l : lectores) hayMas |= !l.resto().contains("\"next\":null");
+                        out.siguiente(hayMas && n > 0 ? Cursor.codificar(ultimo) : null);
+                    }
+                }
+            } finally {
+                for (LectorElementos l : lectores) l.close();
+            }
+        }
+
+        /**
+         * 🛠 /admin/nodos
+         *   GET               → {"nodos":[{"url":...,"productos":N}],...}
+         *   POST {"url":...}  → añade el nodo y le mueve sus claves
+         *   DELETE ?url=...   → mueve sus claves a los demás y lo quita
+         */
+        void admin(HttpExchange ex) throws IOException {
+            try {
+                switch (ex.getRequestMethod()) {
+                    case "GET" -> responder(ex, 200, estadoJson(-1));
+                    case "POST" -> {
+                        byte[] b = cuerpo(ex);
+                        if (b == null) return;
+                        String url = null;
+                        LectorJson json = new LectorJson(b, 0, b.length);
+                        json.inicioObjeto();
+                        while (json.siguienteCampo()) {
+                            if (json.claveEs("url")) url = json.leerTexto(); else json.saltarValor();
+                        }
+                        if (url == null) throw new IllegalArgumentException("Falta url");
+                        String nodo = normalizar(url);
+                        esperarNodo(nodo);
+                        List<String> nuevos = new ArrayList<>(anillo.nodos);
+                        if (nuevos.contains(nodo)) { responder(ex, 409, jsonError("El nodo ya está en el anillo")); return; }
+                        nuevos.add(nodo);
+                        responder(ex, 200, estadoJson(rebalancear(new AnilloHash(nuevos))));
+                    }
+                    case "DELETE" -> {
+                        String url = queryToMap(ex.getRequestURI().getQuery()).get("url");
+                        if (url == null) throw new IllegalArgumentException("Falta ?url=");
+                        List<String> nuevos = new ArrayList<>(anillo.nodos);
+                        if (!nuevos.remove(normalizar(url))) { responder(ex, 404, jsonError("Nodo desconocido")); return; }
+                        if (nuevos.isEmpty()) throw new IllegalArgumentException("No se puede quitar el último nodo");
+                        responder(ex, 200, estadoJson(rebalancear(new AnilloHash(nuevos))));
+                    }
+                    default -> metodoNoPermitido(ex);
+                }
+            } catch (IllegalArgumentException e) {
+                responder(ex, 400, jsonError(e.getMessage()));
+            } catch (IOException e) {
+                responder(ex, 502, jsonError(e.getMessage()));
+            }
+        }
+
+        String estadoJson(long movidos) throws IOException {
+            StringBuilder sb = new StringBuilder("{\"nodos\":[");
+            for (String nodo : anillo.nodos) {
+                if (sb.charAt(sb.length() - 1) == '}') sb.append(',');
+                sb.append("{\"url\":\"").append(Producto.escaparJson(nodo))
+                  .append("\",\"productos\":").append(leerEstadistica(nodo, "productos")).append('}');
+            }
+            sb.append("],\"virtuales\":").append(AnilloHash.VIRTUALES).append(",\"siguienteId\":").append(siguienteId.get());
+            if (movidos >= 0) sb.append(",\"movidos\":").append(movidos);
+            return sb.append('}').toString();
+        }
+
+        /**
+         * ⚖️ Pasa al anillo nuevo moviendo solo las claves que cambian de dueño
+         * 1. Copia: se recorre cada nodo por páginas y cada clave que cambia de dueño
+         *    se crea en el nuevo (PUT + If-None-Match: *; si ya estaba, PUT normal)
+         * 2. Cambio de anillo: desde aquí las lecturas van a los dueños nuevos
+         * 3. Limpieza: se borran de los dueños viejos
+         * Las escrituras esperan durante todo el proceso (candado de migración).
+         */
+        long rebalancear(AnilloHash nuevo) throws IOException {
+            migracion.writeLock().lock();
+            try {
+                AnilloHash viejo = anillo;
+                long movidos = 0;
+                for (String nodo : viejo.nodos) {
+                    movidos += recorrerMovidos(nodo, nuevo, (id, json) -> {
+                        String destino = nuevo.dueno(id);
+                        HttpResponse<byte[]> r = enviarA(destino, altaConId(destino, id, json));
+                        if (r.statusCode() == 412)
+                            r = enviarA(destino, HttpRequest.newBuilder(URI.create(destino + "/productos/" + id))
+                                    .header("Content-Type", "application/json").PUT(HttpRequest.BodyPublishers.ofByteArray(json)));
+                        if (r.statusCode() >= 300) throw new IOException("Copia de " + id + " a " + destino + ": HTTP " + r.statusCode());
+                    });
+                }
+                anillo = nuevo;
+                for (String nodo : viejo.nodos) {   // 🗑 un nodo que sale del anillo queda vacío
+                    recorrerMovidos(nodo, nuevo, (id, json) ->
+                            enviarA(nodo, HttpRequest.newBuilder(URI.create(nodo + "/productos/" + id)).DELETE()));
+                }
+                System.out.println("⚖️ Rebalanceo: " + movidos + " productos movidos, nodos " + nuevo.nodos);
+                return movidos;
+            } finally { migracion.writeLock().unlock(); }
+        }
+
+        @FunctionalInterface
+        interface AccionMovido {
+            void aplicar(long id, byte[] json) throws IOException;
+        }
+
+        // 📑 Recorre un nodo por páginas y aplica la acción a las claves cuyo dueño en "nuevo" es otro
+        long recorrerMovidos(String nodo, AnilloHash nuevo, AccionMovido accion) throws IOException {
+            long n = 0;
+            String cursor = null;
+            do {
+                HttpResponse<byte[]> r = enviarA(nodo, HttpRequest.newBuilder(URI.create(nodo + "/productos?limit="
+                        + PAGINA_MIGRACION + (cursor == null ? "" : "&after=" + cursor))).GET());
+                if (r.statusCode() != 200) throw new IOException("Listado de " + nodo + ": HTTP " + r.statusCode());
+                try (LectorElementos l = new LectorElementos(new ByteArrayInputStream(r.body()))) {
+                    byte[] json;
+                    while ((json = l.siguiente()) != null) {
+                        long id = Cabeza.de(json, l).id();
+                        if (!nuevo.dueno(id).equals(nodo)) { accion.aplicar(id, json); n++; }
+                    }
+                    String resto = l.resto();
+                    int i = resto.indexOf("\"next\":\"");
+                    cursor = i < 0 ? null : resto.substring(i + 8, resto.indexOf('"', i + 8));
+                }
+            } while (cursor != null);
+            return n;
+        }
+    }
+
+    // 🔝 Producto en cabeza de la respuesta de un nodo, con las claves para mezclar
+    record Cabeza(byte[] json, long id, double precio, LectorElementos lector) {
+        static final Comparator<Cabeza> POR_ID = Comparator.comparingLong(Cabeza::id);
+        static final Comparator<Cabeza> POR_PRECIO = Comparator.comparingDouble(Cabeza::precio).thenComparingLong(Cabeza::id);
+
+        static Cabeza de(byte[] json, LectorElementos lector) {
+            LectorJson j = new LectorJson(json, 0, json.length);
+            long id = -1;
+            double precio = 0;
+            j.inicioObjeto();
+            while (j.siguienteCampo()) {
+                if (j.claveEs("id")) id = j.leerLong();
+                else if (j.claveEs("precio")) precio = j.leerDouble();
+                else j.saltarValor();
+            }
+            return new Cabeza(json, id, precio, lector);
+        }
+
+        // ➡️ Mete en el montículo el siguiente producto de ese nodo (si le quedan)
+        static void siguiente(LectorElementos l, PriorityQueue<Cabeza> cabezas) throws IOException {
+            byte[] json = l.siguiente();
+            if (json != null) cabezas.add(de(json, l));
+        }
+    }
+
+    /**
+     * 🧩 Lee uno a uno los objetos del primer array JSON de un stream
+     * ([...] o {"datos":[...],"next":...}) sin cargar la respuesta entera;
+     * resto() devuelve lo que queda detrás del array (el cursor "next")
+     */
+    static final class LectorElementos implements Closeable {
+        private final InputStream in;
+        private final byte[] buf = new byte[16 * 1024];
+        private int pos, fin;
+        private boolean dentro, terminado;
+        private byte[] objeto = new byte[256];
+
+        LectorElementos(InputStream in) { this.in = in; }
+
+        private int leer() throws IOException {
+            if (pos == fin) {
+                fin = in.read(buf, 0, buf.length);
+                pos = 0;
+                if (fin <= 0) { fin = 0; return -1; }
+            }
+            return buf[pos++] & 0xff;
+        }
+
+        byte[] siguiente() throws IOException {
+            if (terminado) return null;
+            int c;
+            if (!dentro) {
+                while ((c = leer()) != '[') if (c < 0) throw new IOException("Respuesta sin array JSON");
+                dentro = true;
+            }
+            while ((c = leer()) != '{') {
+                if (c == ']') { terminado = true; return null; }
+                if (c < 0) throw new IOException("Array JSON cortado");
+            }
+            int n = 0, profundidad = 1;
+            boolean cadena = false, escape = false;
+            objeto[n++] = '{';
+            while (profundidad > 0) {
+                if ((c = leer()) < 0) throw new IOException("Objeto JSON cortado");
+                if (n == objeto.length) objeto = Arrays.copyOf(objeto, n * 2);
+                objeto[n++] = (byte) c;
+                if (cadena) {
+                    if (escape) escape = false;
+                    else if (c == '\\') escape = true;
+                    else if (c == '"') cadena = false;
+                } else if (c == '"') cadena = true;
+                else if (c == '{') profundidad++;
+                else if (c == '}') profundidad--;
+            }
+            return Arrays.copyOf(objeto, n);
+        }
+
+        String resto() throws IOException {
+            while (siguiente() != null) { }
+            ByteArrayOutputStream sb = new ByteArrayOutputStream();
+            sb.write(buf, pos, fin - pos);
+            pos = fin;
+            in.transferTo(sb);
+            return sb.toString(StandardCharsets.UTF_8);
+        }
+
+        public void close() throws IOException { in.close(); }
+    }
+
+    /**
+     * 💍 Anillo de hashing consistente con nodos virtuales
+     * - Cada nodo ocupa VIRTUALES puntos del anillo (hash de "url#i"); un ID es del
+     *   primer punto a su derecha (hash del ID, dando la vuelta al final)
+     * - Añadir un nodo solo le quita claves a los demás (≈ 1/N del total) y quitarlo
+     *   solo reparte las suyas; con un hash módulo N se movería casi todo
+     * - Los puntos muchos por nodo igualan el reparto; el anillo es inmutable
+     *   (se crea otro al cambiar los nodos) y se busca con búsqueda binaria
+     */
+    static final class AnilloHash {
+        static final int VIRTUALES = 160;
+        final List<String> nodos;
+        private final long[] puntos;
+        private final int[] duenos;
+
+        AnilloHash(List<String> nodos) {
+            if (nodos.isEmpty()) throw new IllegalArgumentException("Hace falta al menos un nodo");
+            this.nodos = List.copyOf(nodos);
+            TreeMap<Long, Integer> anillo = new TreeMap<>();
+            for (int n = 0; n < nodos.size(); n++)
+                for (int v = 0; v < VIRTUALES; v++) anillo.putIfAbsent(hash(nodos.get(n) + "#" + v), n);
+            puntos = new long[anillo.size()];
+            duenos = new int[anillo.size()];
+            int i = 0;
+            for (Map.Entry<Long, Integer> e : anillo.entrySet()) {
+                puntos[i] = e.getKey();
+                duenos[i++] = e.getValue();
+            }
+        }
+
+        String dueno(long id) {
+            int i = Arrays.binarySearch(puntos, mezclar(id));
+            if (i < 0) i = -i - 1;                 // primer punto >= hash
+            return nodos.get(duenos[i == puntos.length ? 0 : i]);
+        }
+
+        // 🔢 FNV-1a de 64 bits + mezcla final: posición en el anillo de un texto
+        static long hash(String s) {
+            long h = 0xcbf29ce484222325L;
+            for (byte b : s.getBytes(StandardCharsets.UTF_8)) h = (h ^ (b & 0xff)) * 0x100000001b3L;
+            return mezclar(h);
+        }
+
+        // 🌀 Finalizador de SplitMix64: IDs consecutivos quedan repartidos por todo el anillo
+        static long mezclar(long x) {
+            x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+            x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+            return x ^ (x >>> 31);
+        }
+    }
+
+    /**
+     * 💾 Snapshot binario del catálogo
+     * Formato: bloques de hasta 65.536 productos, tabla de bloques y pie al final
+     *   producto → id (long) · precio (double) · stock (int) · nombre (short + UTF-8)
+     *   tabla    → por bloque: posición (long) · bytes (long) · nº productos (int) · CRC32 (int)
+     *   pie      → posición de la tabla (long) · nº bloques (int) · siguiente ID (long) ·
+     *              versión del formato (int) · "UT3S" (int)
+     * - Se escribe con FileChannel en un .tmp, se fuerza a disco y se renombra de forma
+     *   atómica: si se cae a mitad, el snapshot anterior sigue intacto
+     * - Se carga mapeando cada bloque en memoria (MappedByteBuffer) y procesándolos en
+     *   paralelo; el CRC de cada bloque detecta archivos dañados
+     * - El recorrido no para las escrituras: cada producto se guarda entero, aunque
+     *   cambios simultáneos pueden entrar o no (el siguiente snapshot los recoge)
+     */
+    static class Snapshot {
+        static final int MAGICO = 0x55543353, VERSION = 1, POR_BLOQUE = 65_536;
+        static final int PIE = 8 + 4 + 8 + 4 + 4, ENTRADA_TABLA = 8 + 8 + 4 + 4;
+
+        static int guardar(RepositorioProductos repo, Path destino) throws IOException {
+            Path tmp = destino.resolveSibling(destino.getFileName() + ".tmp");
+            long siguienteId = repo.siguienteId(); // antes de recorrer: cubre todo ID ya asignado
+            int total = 0;
+            try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+                CRC32 crc = new CRC32();
+                List<long[]> tabla = new ArrayList<>();
+                long pos = 0, inicioBloque = 0;
+                int enBloque = 0;
+                for (Producto p : repo.todos()) {
+                    byte[] nombre = p.getNombre().getBytes(StandardCharsets.UTF_8);
+                    if (buf.remaining() < 22 + nombre.length) pos += volcar(fc, buf, crc);
+                    buf.putLong(p.getId()).putDouble(p.getPrecio()).putInt(p.getStock())
+                       .putShort((short) nombre.length).put(nombre);
+                    total++;
+                    if (++enBloque == POR_BLOQUE) {
+                        pos += volcar(fc, buf, crc);
+                        tabla.add(new long[]{inicioBloque, pos - inicioBloque, enBloque, crc.getValue()});
+                        crc.reset();
+                        inicioBloque = pos;
+                        enBloque = 0;
+                    }
+                }
+                if (enBloque > 0) {
+                    pos += volcar(fc, buf, crc);
+                    tabla.add(new long[]{inicioBloque, pos - inicioBloque, enBloque, crc.getValue()});
+                }
+                for (long[] b : tabla) {
+                    if (buf.remaining() < ENTRADA_TABLA) volcar(fc, buf, null);
+                    buf.putLong(b[0]).putLong(b[1]).putInt((int) b[2]).putInt((int) b[3]);
+                }
+                if (buf.remaining() < PIE) volcar(fc, buf, null);
+                buf.putLong(pos).putInt(tabla.size()).putLong(siguienteId).putInt(VERSION).putInt(MAGICO);
+                volcar(fc, buf, null);
+                fc.force(true);
+            }
+            Files.move(tmp, destino, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return total;
+        }
+
+        // 🚿 Escribe el buffer entero (actualizando el CRC del bloque) y lo deja vacío
+        private static int volcar(FileChannel fc, ByteBuffer buf, CRC32 crc) throws IOException {
+            buf.flip();
+            if (crc != null) crc.update(buf.duplicate());
+            int n = buf.remaining();
+            while (buf.hasRemaining()) fc.write(buf);
+            buf.clear();
+            return n;
+        }
+
+        static int cargar(RepositorioProductos repo, Path origen) throws IOException {
+            try (FileChannel fc = FileChannel.open(origen, StandardOpenOption.READ)) {
+                long tam = fc.size();
+                if (tam < PIE) throw new IOException("Snapshot dañado: " + origen + " es demasiado corto");
+                ByteBuffer pie = ByteBuffer.allocate(PIE);
+                while (pie.hasRemaining() && fc.read(pie, tam - PIE + pie.position()) > 0) { }
+                pie.flip();
+                long posTabla = pie.getLong();
+                int bloques = pie.getInt();
+                long siguienteId = pie.getLong();
+                int version = pie.getInt();
+                if (pie.getInt() != MAGICO || version != VERSION || bloques < 0
+                        || posTabla + (long) bloques * ENTRADA_TABLA != tam - PIE)
+                    throw new IOException("Snapshot dañado o de otra versión: " + origen);
+                ByteBuffer tabla = fc.map(FileChannel.MapMode.READ_ONLY, posTabla, (long) bloques * ENTRADA_TABLA);
+                long[][] entradas = new long[bloques][];
+                for (int i = 0; i < bloques; i++)
+                    entradas[i] = new long[]{tabla.getLong(), tabla.getLong(), tabla.getInt(), tabla.getInt() & 0xffffffffL};
+                try {
+                    IntStream.range(0, bloques).parallel().forEach(i -> cargarBloque(repo, fc, i, entradas[i], siguienteId));
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                int total = 0;
+                for (long[] e : entradas) total += (int) e[2];
+                return total;
+            }
+        }
+
+        // 🧩 Un bloque: se mapea, se comprueba el CRC y se convierte en productos
+        private static void cargarBloque(RepositorioProductos repo, FileChannel fc, int i, long[] e, long siguienteId) {
+            try {
+                MappedByteBuffer m = fc.map(FileChannel.MapMode.READ_ONLY, e[0], e[1]);
+                CRC32 crc = new CRC32();
+                crc.update(m.duplicate());
+                if (crc.getValue() != e[3]) throw new IOException("Snapshot dañado: CRC incorrecto en el bloque " + i);
+                int n = (int) e[2];
+                List<Producto> lote = new ArrayList<>(n);
+                byte[] aux = new byte[Short.MAX_VALUE];
+                for (int k = 0; k < n; k++) {
+                    long id = m.getLong();
+                    double precio = m.getDouble();
+                    int stock = m.getInt();
+                    int largo = m.getShort() & 0xffff;
+                    m.get(aux, 0, largo);
+                    lote.add(new Producto(id, new String(aux, 0, largo, StandardCharsets.UTF_8), precio, stock, 0));
+                }
+                repo.restaurar(lote, siguienteId);
+            } catch (IOException | RuntimeException ex) {
+                throw new UncheckedIOException(ex instanceof IOException io ? io
+                        : new IOException("Snapshot dañado en el bloque " + i + ": " + ex, ex));
+            }
+        }
+    }
+
+    /**
+     * 📡 Canal de cambios para los suscriptores SSE
+     * - publicar(): numera el evento con un AtomicLong y lo deja en un anillo con los
+     *   últimos N (AtomicReferenceArray). Sin candados y sin recorrer suscriptores:
+     *   el coste no depende de cuántos haya y no frena a los escritores de otras franjas.
+     * - Cada suscriptor lee del anillo a su ritmo, desde el último id que envió. Si el
+     *   anillo le adelanta una vuelta entera se entera al ver un id mayor del esperado.
+     * - Para despertar a los que esperan, publicar() solo despierta (unpark) a un hilo
+     *   difusor; él avisa a todos con signalAll, fuera del camino de escritura.
+     * - Se publica con la franja del ID tomada: dos eventos del mismo producto salen
+     *   numerados en el orden en que se aplicaron.
+     * - Un vigilante revisa cada segundo a los suscriptores: al que lleva más de
+     *   PLAZO_ESCRITURA_SEGUNDOS en un mismo envío (cliente que no lee) le interrumpe
+     *   el hilo; el write bloqueado falla, se da de baja y libera su hueco.
+     */
+    static class CanalCambios {
+        static final int LATIDO_SEGUNDOS = 15;
+        static final int PLAZO_ESCRITURA_SEGUNDOS = 10;
+        static final byte[] REINTENTO = "retry: 3000\n\n".getBytes(StandardCharsets.UTF_8);
+        static final byte[] LATIDO = ": latido\n\n".getBytes(StandardCharsets.UTF_8);
+
+        // 🪶 Un hilo virtual por suscriptor (casi siempre dormido); se crea con el primero
+        static final class Emisores {
+            static final ExecutorService POOL = crearExecutorVirtual("productos-sse");
+        }
+
+        record Evento(long id, byte[] bytes) {}
+
+        // 👤 inicio: último evento numerado al suscribirse; hilo y envioDesde son para el vigilante
+        static final class Suscriptor {
+            private final long inicio;
+            private Thread hilo;              // protegido por this
+            private volatile long envioDesde; // nanoTime del envío en curso, 0 = esperando eventos
+
+            Suscriptor(long inicio) { this.inicio = inicio; }
+
+            long inicio() { return inicio; }
+
+            synchronized void empezar() { hilo = Thread.currentThread(); }
+
+            void escribiendo(boolean si) { envioDesde = si ? System.nanoTime() : 0; }
+
+            // ⏰ Solo se interrumpe mientras el hilo sigue siendo suyo (el pool lo reutiliza)
+            synchronized void cortarSiAtascado(long ahora, long plazo) {
+                long t = envioDesde;
+                if (hilo != null && t != 0 && ahora - t > plazo) hilo.interrupt();
+            }
+
+            synchronized void terminar() {
+                hilo = null;
+                envioDesde = 0;
+            }
+        }
+
+        private final AtomicReferenceArray<Evento> anillo;
+        private final AtomicLong secuencia = new AtomicLong();
+        private final AtomicInteger activos = new AtomicInteger();
+        private final AtomicReference<Thread> difusor = new AtomicReference<>();
+        private final Set<Suscriptor> suscriptores = ConcurrentHashMap.newKeySet();
+        private final ReentrantLock cerrojo = new ReentrantLock();
+        private final Condition nuevos = cerrojo.newCondition();
+        private final int maxSuscriptores;
+
+        CanalCambios(int historial, int maxSuscriptores) {
+            this.anillo = new AtomicReferenceArray<>(historial);
+            this.maxSuscriptores = maxSuscriptores;
+        }
+
+        void publicar(String tipo, long id, Producto p) {
+            byte[] datos = p != null ? p.toJsonBytes() : ("{\"id\":" + id + "}").getBytes(StandardCharsets.UTF_8);
+            long n = secuencia.incrementAndGet();
+            Evento e = new Evento(n, marco(n, tipo, datos));
+            // 🧷 Un publicador muy retrasado nunca pisa un evento más nuevo de la misma casilla
+            anillo.accumulateAndGet(casilla(n), e, (viejo, nuevo) -> viejo != null && viejo.id() > nuevo.id() ? viejo : nuevo);
+            Thread d = difusor.get();
+            if (d != null && activos.get() > 0) LockSupport.unpark(d);
+        }
+
+        Suscriptor suscribir() {
+            int n;
+            do {
+                n = activos.get();
+                if (n >= maxSuscriptores) return null;
+            } while (!activos.compareAndSet(n, n + 1));
+            arrancarDifusor();
+            Suscriptor s = new Suscriptor(secuencia.get());
+            suscriptores.add(s);
+            return s;
+        }
+
+        void baja(Suscriptor s) {
+            s.terminar();
+            if (suscriptores.remove(s)) activos.decrementAndGet();
+        }
+
+        long ultimo() { return secuencia.get(); }
+
+        // 🔍 El evento n, uno más nuevo si el anillo ya dio la vuelta, o null si aún no está
+        Evento leer(long n) {
+            Evento e = anillo.get(casilla(n));
+            return e != null && e.id() >= n ? e : null;
+        }
+
+        // ⏳ Como leer(n), esperando hasta "segundos" a que se publique
+        Evento esperar(long n, long segundos) throws InterruptedException {
+            Evento e = leer(n);
+            if (e != null) return e;
+            long nanos = TimeUnit.SECONDS.toNanos(segundos);
+            cerrojo.lock();
+            try {
+                while ((e = leer(n)) == null && nanos > 0) nanos = nuevos.awaitNanos(nanos);
+                return e;
+            } finally {
+                cerrojo.unlock();
+            }
+        }
+
+        private int casilla(long n) { return (int) (n % anillo.length()); }
+
+        private void arrancarDifusor() {
+            if (difusor.get() != null) return;
+            Thread t = new Thread(this::difundir, "productos-sse-difusor");
+            t.setDaemon(true);
+            if (!difusor.compareAndSet(null, t)) return;
+            t.start();
+            ScheduledExecutorService vigilante = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread v = new Thread(r, "productos-sse-vigilante");
+                v.setDaemon(true);
+                return v;
+            });
+            long plazo = TimeUnit.SECONDS.toNanos(PLAZO_ESCRITURA_SEGUNDOS);
+            vigilante.scheduleWithFixedDelay(() -> {
+                long ahora = System.nanoTime();
+                for (Suscriptor s : suscriptores) s.cortarSiAtascado(ahora, plazo);
+            }, 1, 1, TimeUnit.SECONDS);
+        }
+
+        // 📣 Cada unpark de publicar() despierta a todos los que esperan (varios se juntan en uno)
+        private void difundir() {
+            while (!Thread.currentThread().isInterrupted()) {
+                LockSupport.park(this);
+                cerrojo.lock();
+                try {
+                    nuevos.signalAll();
+                } finally {
+                    cerrojo.unlock();
+                }
+            }
+        }
+
+        static byte[] reinicio(long id) { return marco(id, "reinicio", "{}".getBytes(StandardCharsets.UTF_8)); }
+
+        // id: N / event: tipo / data: json / línea en blanco
+        private static byte[] marco(long id, String tipo, byte[] datos) {
+            byte[] cab = ("id: " + id + "\nevent: " + tipo + "\ndata: ").getBytes(StandardCharsets.UTF_8);
+            byte[] b = Arrays.copyOf(cab, cab.length + datos.length + 2);
+            System.arraycopy(datos, 0, b, cab.length, datos.length);
+            b[b.length - 2] = '\n';
+            b[b.length - 1] = '\n';
+            return b;
+        }
+    }
+
+    /**
+     * 📈 Agregados del catálogo mantenidos por deltas (leerlos cuesta O(1), no O(n))
+     * - Cada escritura resta el producto anterior y suma el nuevo (alta: sin anterior,
+     *   baja: sin nuevo); las reservas de stock pasan por el mismo camino
+     * - Importes en céntimos (long): sumar y restar doubles acumula error, los enteros no
+     * - Mín/máx: multiconjunto ordenado precio → nº de productos; al llegar a 0 la
+     *   entrada desaparece, así el mínimo sigue siendo correcto tras borrar el más barato
+     * - LongAdder: escritores de franjas distintas suman a la vez sin contención.
+     *   Con escrituras en curso cada cifra es exacta pero pueden no ser del mismo instante.
+     */
+    static class EstadisticasCatalogo {
+        private final LongAdder productos = new LongAdder();
+        private final LongAdder stockTotal = new LongAdder();
+        private final LongAdder valorCentimos = new LongAdder();   // Σ precio · stock
+        private final LongAdder sumaPrecios = new LongAdder();     // Σ precio (para la media)
+        private final ConcurrentSkipListMap<Long, Long> precios = new ConcurrentSkipListMap<>();
+
+        void cambiar(Producto antes, Producto despues) {
+            if (antes != null) sumar(antes, -1);
+            if (despues != null) sumar(despues, +1);
+        }
+
+        private void sumar(Producto p, int signo) {
+            long centimos = centimos(p.getPrecio());
+            productos.add(signo);
+            stockTotal.add(signo * (long) p.getStock());
+            valorCentimos.add(signo * centimos * p.getStock());
+            sumaPrecios.add(signo * centimos);
+            // 🧮 merge es atómico: si el contador llega a 0 se quita la clave
+            precios.merge(centimos, (long) signo, (a, b) -> a + b == 0 ? null : a + b);
+        }
+
+        static long centimos(double precio) { return Math.round(precio * 100); }
+
+        static String euros(long centimos) { return BigDecimal.valueOf(centimos, 2).toPlainString(); }
+
+        // 🆔 siguienteId: el ID que tocará al próximo alta (el repartidor lo usa al arrancar)
+        String toJson(long siguienteId) {
+            long n = productos.sum();
+            Map.Entry<Long, Long> min = precios.firstEntry(), max = precios.lastEntry();
+            String media = n <= 0 ? "null" : BigDecimal.valueOf(sumaPrecios.sum())
+                    .divide(BigDecimal.valueOf(n * 100), 2, RoundingMode.HALF_UP).toPlainString();
+            return "{\"productos\":" + n
+                    + ",\"stockTotal\":" + stockTotal.sum()
+                    + ",\"valorInventario\":" + euros(valorCentimos.sum())
+                    + ",\"precioMin\":" + (min == null ? "null" : euros(min.getKey()))
+                    + ",\"precioMedio\":" + media
+                    + ",\"precioMax\":" + (max == null ? "null" : euros(max.getKey()))
+                    + ",\"siguienteId\":" + siguienteId + "}";
+        }
     }
 
     /**
-     * 📍 Enrutador de todas las operaciones de /productos
+     * 🔎 Índice invertido de trigramas sobre el nombre en minúsculas
+     * - "gorra" → gor, orr, rra; cada trigrama apunta a la lista de IDs que lo contienen
+     * - Buscar "orra" = intersección de las listas de orr y rra, empezando por la menor
+     * - El repositorio lo actualiza con la franja del ID tomada, en cada alta, cambio y baja
+     * - Nombres de ≤ 50 caracteres → ≤ 48 trigramas por producto: el índice está acotado
+     * - Cada trigrama (3 chars de 16 bits) se empaqueta en un long: claves sin substrings
+     * - Listas de long primitivos (8 bytes por entrada, sin Long ni nodos de conjunto):
+     *   con ALMACEN=columnar y decenas de millones de productos el índice no se come
+     *   lo que ahorran las columnas
+     * - Las bajas no se buscan en la lista, solo se cuentan: la entrada caducada se queda
+     *   hasta la compactación (buscar ya confirma cada candidato con el producto actual)
      */
-    public static void handleProductos(HttpExchange ex) throws IOException {
-        // 🔐 CORS para permitir peticiones externas desde frontend (por ejemplo con fetch)
-        ex.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
-        ex.getResponseHeaders().add("Access-Control-Allow-Methods", "GET,POST,PUT,DELETE,OPTIONS");
-        ex.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type");
-        if ("OPTIONS".equalsIgnoreCase(ex.getRequestMethod())) {
-            ex.sendResponseHeaders(204, -1); return;
+    static class IndiceNombres {
+        static final int MIN_CONSULTA = 3;
+        private final ConcurrentHashMap<Long, Lista> indice = new ConcurrentHashMap<>();
+        private final LongFunction<String> nombreActual;   // nombre guardado del ID, o null si no existe
+
+        IndiceNombres(LongFunction<String> nombreActual) { this.nombreActual = nombreActual; }
+
+        static String normalizar(String s) { return s.toLowerCase(Locale.ROOT); }
+
+        static long[] trigramas(String normal) {
+            if (normal == null || normal.length() < 3) return new long[0];
+            long[] t = new long[normal.length() - 2];
+            for (int i = 0; i < t.length; i++) t[i] = trigrama(normal, i);
+            return t;
         }
 
-        String path = ex.getRequestURI().getPath();        // 🛣 /productos o /productos/{id}
-        String method = ex.getRequestMethod();             // 🔁 GET, POST, PUT, DELETE
-        String[] partes = path.split("/");
+        private static long trigrama(String normal, int i) {
+            return ((long) normal.charAt(i) << 32) | ((long) normal.charAt(i + 1) << 16) | normal.charAt(i + 2);
+        }
 
-        if (partes.length == 2) {
-            switch (method) {
-                case "GET" -> listar(ex);
-                case "POST" -> crear(ex);
-                default -> metodoNoPermitido(ex);
+        // ♻️ Nombre antes → después (null = alta o baja): solo se tocan los trigramas que cambian
+        void cambiar(long id, String antes, String despues) {
+            long[] viejos = trigramas(antes == null ? null : normalizar(antes));
+            long[] nuevos = trigramas(despues == null ? null : normalizar(despues));
+            for (long t : nuevos) {
+                if (contiene(viejos, t)) continue;
+                indice.computeIfAbsent(t, k -> new Lista()).anadir(id);
             }
-        } else if (partes.length == 3) {
-            String recurso = partes[2];
-            if (recurso.equals("mascaros") && method.equals("GET")) {
-                filtrarPorPrecio(ex);
-                return;
+            for (long t : viejos) {
+                if (contiene(nuevos, t)) continue;
+                Lista l = indice.get(t);
+                if (l != null) l.quitar(t, this);
+            }
+        }
+
+        // 🎯 Entrega los IDs que tienen todos los trigramas de la consulta (ya normalizada)
+        void candidatos(String consulta, LongConsumer destino) {
+            long[] ts = trigramas(consulta);
+            List<Lista> listas = new ArrayList<>(ts.length);
+            for (long t : ts) {
+                Lista l = indice.get(t);
+                if (l == null) return;                   // un trigrama sin IDs → sin resultados
+                if (!listas.contains(l)) listas.add(l);
+            }
+            if (listas.isEmpty()) return;
+            listas.sort(Comparator.comparingInt(Lista::tamanio));
+            long[] ids = listas.get(0).copia();
+            int n = ids.length;
+            for (int i = 1; i < listas.size() && n > 0; i++) n = listas.get(i).retener(ids, n);
+            for (int i = 0; i < n; i++) destino.accept(ids[i]);
+        }
+
+        // ✅ ¿Sigue el nombre actual de id conteniendo el trigrama t?
+        boolean vigente(long id, long t) {
+            String nombre = nombreActual.apply(id);
+            if (nombre == null) return false;
+            String normal = normalizar(nombre);
+            for (int i = 0; i + 2 < normal.length(); i++) if (trigrama(normal, i) == t) return true;
+            return false;
+        }
+
+        private static boolean contiene(long[] ts, long t) {
+            for (long x : ts) if (x == t) return true;
+            return false;
+        }
+
+        /**
+         * 📚 IDs de un trigrama en un long[]
+         * - [0, ordenados): ordenados y sin repetir · [ordenados, n): altas sin ordenar
+         * - Un alta con ID mayor que el último (lo normal: IDs crecientes) sigue ordenada
+         *   sin coste; si la cola desordenada pasa de 1/8 de la lista se ordena y se mezcla
+         * - Compactación: con 1/4 de bajas pendientes se quitan las entradas cuyo producto
+         *   ya no tiene el trigrama y se recorta el array
+         * - Un candado por lista: escritores de franjas distintas y lectores se turnan
+         *   solo cuando tocan el mismo trigrama. Las listas vacías no se quitan del mapa
+         *   (hay tantas como trigramas distintos, no como productos), así un alta nunca
+         *   cae en una lista ya descolgada.
+         */
+        static final class Lista {
+            private final ReentrantLock cerrojo = new ReentrantLock();
+            private long[] ids = new long[2];
+            private int n, ordenados, bajas;
+
+            void anadir(long id) {
+                cerrojo.lock();
+                try {
+                    if (n == ids.length) ids = Arrays.copyOf(ids, n + (n >> 1) + 2);
+                    ids[n++] = id;
+                    if (ordenados == n - 1 && (n == 1 || id > ids[n - 2])) ordenados = n;
+                    else if (n - ordenados > Math.max(32, ordenados >> 3)) ordenar();
+                } finally {
+                    cerrojo.unlock();
+                }
+            }
+
+            void quitar(long t, IndiceNombres indice) {
+                cerrojo.lock();
+                try {
+                    if (++bajas > 16 && bajas > n >> 2) compactar(t, indice);
+                } finally {
+                    cerrojo.unlock();
+                }
+            }
+
+            int tamanio() {
+                cerrojo.lock();
+                try {
+                    return n;
+                } finally {
+                    cerrojo.unlock();
+                }
+            }
+
+            // 📋 Copia ordenada: la lista más corta se recorre sin tener el candado
+            long[] copia() {
+                cerrojo.lock();
+                try {
+                    if (ordenados < n) ordenar();
+                    return Arrays.copyOf(ids, n);
+                } finally {
+                    cerrojo.unlock();
+                }
+            }
+
+            // ✂️ Deja en cand[0, m) solo los que también están aquí (búsqueda binaria); devuelve cuántos
+            int retener(long[] cand, int m) {
+                cerrojo.lock();
+                try {
+                    if (ordenados < n) ordenar();
+                    int w = 0;
+                    for (int i = 0; i < m; i++) if (Arrays.binarySearch(ids, 0, n, cand[i]) >= 0) cand[w++] = cand[i];
+                    return w;
+                } finally {
+                    cerrojo.unlock();
+                }
             }
-            long id;
-            try { id = Long.parseLong(recurso); } catch (NumberFormatException e) {
-                responder(ex, 400, jsonError("ID inválido o recurso no encontrado")); return;
+
+            // 🔀 Ordena la cola, la mezcla con la parte ordenada y quita repetidos (re-altas)
+            private void ordenar() {
+                Arrays.sort(ids, ordenados, n);
+                long[] r = new long[Math.max(2, n + (n >> 3))];
+                int i = 0, j = ordenados, w = 0;
+                while (i < ordenados || j < n) {
+                    long x = j >= n || (i < ordenados && ids[i] <= ids[j]) ? ids[i++] : ids[j++];
+                    if (w == 0 || r[w - 1] != x) r[w++] = x;
+                }
+                ids = r;
+                n = ordenados = w;
             }
-            switch (method) {
-                case "GET" -> obtener(ex, id);
-                case "PUT" -> actualizar(ex, id);
-                case "DELETE" -> eliminar(ex, id);
-                default -> metodoNoPermitido(ex);
+
+            private void compactar(long t, IndiceNombres indice) {
+                if (ordenados < n) ordenar();
+                int w = 0;
+                for (int i = 0; i < n; i++) if (indice.vigente(ids[i], t)) ids[w++] = ids[i];
+                n = ordenados = w;
+                bajas = 0;
+                if (ids.length > 2 * n + 8) ids = Arrays.copyOf(ids, n + (n >> 3) + 2);
             }
-        } else responder(ex, 404, jsonError("Ruta no válida"));
+        }
     }
 
-    // 🔍 GET /productos
-    private static void listar(HttpExchange ex) throws IOException {
-        List<String> lista = new ArrayList<>();
-        for (Producto p : productos.values()) lista.add(p.toJson());
-        responder(ex, 200, "[" + String.join(",", lista) + "]");
+    /**
+     * 🏅 Coincidencia de búsqueda con su puntuación (menor = mejor)
+     * clase: 0 nombre exacto, 1 empieza por q, 2 empieza una palabra, 3 en medio
+     */
+    record Acierto(Producto producto, int clase, int posicion) {
+        static final Comparator<Acierto> ORDEN = Comparator.comparingInt(Acierto::clase)
+                .thenComparingInt(Acierto::posicion)
+                .thenComparingInt(a -> a.producto().getNombre().length())
+                .thenComparingLong(a -> a.producto().getId());
+
+        // null si el nombre actual ya no contiene la consulta
+        static Acierto de(Producto p, String consulta) {
+            String nombre = IndiceNombres.normalizar(p.getNombre());
+            int pos = nombre.indexOf(consulta);
+            if (pos < 0) return null;
+            int clase = nombre.length() == consulta.length() ? 0
+                      : pos == 0 ? 1
+                      : !Character.isLetterOrDigit(nombre.charAt(pos - 1)) ? 2 : 3;
+            return new Acierto(p, clase, pos);
+        }
     }
 
-    // 🔍 GET /productos/{id}
-    private static void obtener(HttpExchange ex, long id) throws IOException {
-        Producto p = productos.get(id);
-        if (p == null) responder(ex, 404, jsonError("Producto no encontrado"));
-        else responder(ex, 200, p.toJson());
+    /**
+     * 🧱 Almacenamiento físico de productos. Las escrituras llegan siempre con la
+     * franja del ID tomada por el repositorio; las lecturas pueden ser concurrentes.
+     */
+    interface Almacen {
+        Producto obtener(long id);
+
+        void guardar(Producto p);          // alta de un ID nuevo
+
+        Producto sustituir(Producto p);    // solo si existe; devuelve el anterior o null
+
+        Producto borrar(long id);          // devuelve el borrado o null
+
+        Iterable<Producto> despuesDe(long id);              // orden por ID
+
+        Iterable<Producto> porPrecio(double min, double max);
+
+        // 🏆 Todos en orden de precio (y de ID en empates), o null si no hay índice de precios
+        default Iterable<Producto> ordenPorPrecio(boolean ascendente) { return null; }
+
+        Stream<Producto> enParalelo();                      // recorrido repartible entre núcleos
+
+        int tamanio();
     }
 
-    // 🧾 POST /productos (crear nuevo)
-    private static void crear(HttpExchange ex) throws IOException {
-        String body = new String(ex.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
-        try {
-            Producto p = Producto.fromJson(body);
-            p.setId(contadorId++);
-            productos.put(p.getId(), p);
-            responder(ex, 201, p.toJson());
-        } catch (IllegalArgumentException e) {
-            responder(ex, 400, jsonError(e.getMessage()));
+    /**
+     * 🗂 Almacén por objetos (modo por defecto)
+     * - ConcurrentSkipListMap: lecturas sin bloqueo y orden por ID
+     *   (la paginación empieza en cualquier ID sin ordenar ni copiar el catálogo)
+     * - Índice secundario ordenado por precio para consultas de rango en O(log n + k)
+     */
+    static class AlmacenMapa implements Almacen {
+        private final ConcurrentSkipListMap<Long, Producto> mapa = new ConcurrentSkipListMap<>();
+        private final ConcurrentSkipListSet<ClavePrecio> indicePrecio = new ConcurrentSkipListSet<>();
+
+        public Producto obtener(long id) { return mapa.get(id); }
+
+        public void guardar(Producto p) {
+            mapa.put(p.getId(), p);
+            indicePrecio.add(new ClavePrecio(p.getPrecio(), p.getId()));
         }
-    }
 
-    // ♻️ PUT /productos/{id} (actualizar)
-    private static void actualizar(HttpExchange ex, long id) throws IOException {
-        if (!productos.containsKey(id)) {
-            responder(ex, 404, jsonError("Producto no encontrado")); return;
+        public Producto sustituir(Producto p) {
+            Producto anterior = mapa.replace(p.getId(), p);
+            if (anterior != null && Double.compare(anterior.getPrecio(), p.getPrecio()) != 0) {
+                indicePrecio.add(new ClavePrecio(p.getPrecio(), p.getId()));
+                indicePrecio.remove(new ClavePrecio(anterior.getPrecio(), p.getId()));
+            }
+            return anterior;
         }
-        String body = new String(ex.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
-        try {
-            Producto p = Producto.fromJson(body);
-            p.setId(id);
-            productos.put(id, p);
-            responder(ex, 200, p.toJson());
-        } catch (IllegalArgumentException e) {
-            responder(ex, 400, jsonError(e.getMessage()));
+
+        public Producto borrar(long id) {
+            Producto anterior = mapa.remove(id);
+            if (anterior != null) indicePrecio.remove(new ClavePrecio(anterior.getPrecio(), id));
+            return anterior;
         }
-    }
 
-    // ❌ DELETE /productos/{id} (eliminar)
-    private static void eliminar(HttpExchange ex, long id) throws IOException {
-        if (productos.remove(id) == null)
-            responder(ex, 404, jsonError("Producto no encontrado"));
-        else responder(ex, 204, "");
-    }
+        public Iterable<Producto> despuesDe(long id) { return mapa.tailMap(id, false).values(); }
 
-    // 🎯 GET /productos/mascaros?precio=XX
-    private static void filtrarPorPrecio(HttpExchange ex) throws IOException {
-        String query = ex.getRequestURI().getQuery();
-        double min;
-        try {
-            Map<String,String> params = queryToMap(query);
-            min = Double.parseDouble(params.getOrDefault("precio","0"));
-        } catch (Exception e) {
-            responder(ex, 400, jsonError("Parámetro precio inválido")); return;
+        public int tamanio() { return mapa.size(); }
+
+        /**
+         * 🎯 Productos con min <= precio <= max, en orden de precio.
+         * Se recorre solo el tramo del índice afectado; si una escritura concurrente
+         * cambia el precio, la entrada vieja se descarta al comparar con el mapa.
+         */
+        public Iterable<Producto> porPrecio(double min, double max) {
+            return vigentes(indicePrecio.subSet(
+                    new ClavePrecio(min, Long.MIN_VALUE), true, new ClavePrecio(max, Long.MAX_VALUE), true));
         }
-        List<String> resultado = new ArrayList<>();
-        for (Producto p : productos.values())
-            if (p.getPrecio() >= min) resultado.add(p.toJson());
-        responder(ex, 200, "[" + String.join(",", resultado) + "]");
-    }
 
-    private static void metodoNoPermitido(HttpExchange ex) throws IOException {
-        responder(ex, 405, jsonError("Método no permitido"));
+        // 🏆 El índice ya está ordenado: basta recorrerlo por el extremo pedido
+        public Iterable<Producto> ordenPorPrecio(boolean ascendente) {
+            return vigentes(ascendente ? indicePrecio : indicePrecio.descendingSet());
+        }
+
+        public Stream<Producto> enParalelo() { return mapa.values().parallelStream(); }
+
+        private Iterable<Producto> vigentes(NavigableSet<ClavePrecio> tramo) {
+            return () -> new Iterator<>() {
+                private final Iterator<ClavePrecio> it = tramo.iterator();
+                private Producto siguiente = avanzar();
+
+                private Producto avanzar() {
+                    while (it.hasNext()) {
+                        ClavePrecio k = it.next();
+                        Producto p = mapa.get(k.id());
+                        if (p != null && Double.compare(p.getPrecio(), k.precio()) == 0) return p;
+                    }
+                    return null;
+                }
+
+                public boolean hasNext() { return siguiente != null; }
+
+                public Producto next() {
+                    if (siguiente == null) throw new NoSuchElementException();
+                    Producto p = siguiente;
+                    siguiente = avanzar();
+                    return p;
+                }
+            };
+        }
     }
 
-    private static void responder(HttpExchange ex, int status, String body) throws IOException {
-        ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
-        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
-        ex.sendResponseHeaders(status, bytes.length);
-        try (OutputStream os = ex.getResponseBody()) { os.write(bytes); }
+    /**
+     * 🧱 Almacén columnar para catálogos muy grandes (ALMACEN=columnar)
+     * - Sin un objeto por producto ni claves Long en cajas: cada campo vive en su
+     *   propio array primitivo (precio, stock, versión) y la fila es el propio ID
+     * - Los arrays se reservan por segmentos de 65536 filas: crecer no copia datos
+     * - Nombres codificados con diccionario: cada nombre distinto se guarda una vez
+     *   y la fila solo guarda su código (0 = fila vacía)
+     * - Un StampedLock POR SEGMENTO: lecturas optimistas que no bloquean y se repiten
+     *   solo si un escritor tocó ese segmento; escrituras (altas, PUT, reservas) de
+     *   segmentos distintos van a la vez. El candado global solo se toma para crear
+     *   un segmento (o agrandar su array) y para añadir un nombre nuevo al diccionario
+     * - Los Producto que se devuelven son vistas temporales creadas al leer
+     * - Sin índice de precios: /mascaros recorre la columna de precios (muy rápido
+     *   y sin memoria extra) y el resultado sale en orden de ID
+     */
+    static class AlmacenColumnar implements Almacen {
+        private static final int BITS_SEGMENTO = 16;
+        private static final int TAM_SEGMENTO = 1 << BITS_SEGMENTO;
+        private static final int MASCARA = TAM_SEGMENTO - 1;
+
+        // 📐 Un segmento = 65536 filas consecutivas de todas las columnas, con su candado
+        private static final class Segmento {
+            final StampedLock candado = new StampedLock();
+            final double[] precios = new double[TAM_SEGMENTO];
+            final int[] stocks = new int[TAM_SEGMENTO];
+            final long[] versiones = new long[TAM_SEGMENTO];
+            final int[] nombres = new int[TAM_SEGMENTO]; // código de diccionario + 1
+        }
+
+        private final ReentrantLock candadoGlobal = new ReentrantLock(); // 🌍 crecer y diccionario
+        private volatile Segmento[] segmentos = new Segmento[16];
+        private volatile String[] diccionario = new String[1024];
+        private final ConcurrentHashMap<String, Integer> codigos = new ConcurrentHashMap<>();
+        private int totalNombres;                                          // con candadoGlobal
+        private final AtomicLong maxId = new AtomicLong();
+        private final AtomicInteger tamanio = new AtomicInteger();
+
+        public Producto obtener(long id) {
+            Segmento seg = segmento(id);
+            if (seg == null) return null;
+            long sello = seg.candado.tryOptimisticRead();
+            Producto p = leerFila(seg, id);
+            if (seg.candado.validate(sello)) return p;
+            sello = seg.candado.readLock();
+            try { return leerFila(seg, id); } finally { seg.candado.unlockRead(sello); }
+        }
+
+        // 🧭 Segmento que guarda el ID, o null si aún no existe
+        private Segmento segmento(long id) {
+            if (id <= 0 || id > maxId.get()) return null;
+            Segmento[] segs = segmentos;
+            int s = (int) (id >>> BITS_SEGMENTO);
+            return s < segs.length ? segs[s] : null;
+        }
+
+        // 🔍 Sin candado: el llamador valida el sello optimista o tiene el del segmento
+        private Producto leerFila(Segmento seg, long id) {
+            int fila = (int) (id & MASCARA);
+            int codigo = seg.nombres[fila];
+            String[] dic = diccionario;
+            if (codigo == 0 || codigo > dic.length) return null;
+            return new Producto(id, dic[codigo - 1], seg.precios[fila], seg.stocks[fila], seg.versiones[fila]);
+        }
+
+        public void guardar(Producto p) {
+            long id = p.getId();
+            if (id <= 0) throw new IllegalArgumentException("ID no válido para almacén columnar");
+            Segmento seg = segmentoParaEscribir(id);
+            long sello = seg.candado.writeLock();
+            try {
+                if (seg.nombres[(int) (id & MASCARA)] == 0) tamanio.incrementAndGet();
+                escribirFila(seg, p);
+            } finally { seg.candado.unlockWrite(sello); }
+            maxId.accumulateAndGet(id, Math::max); // 📢 después de la fila: quien vea el ID ya la encuentra
+        }
+
+        public Producto sustituir(Producto p) {
+            Segmento seg = segmento(p.getId());
+            if (seg == null) return null;
+            long sello = seg.candado.writeLock();
+            try {
+                Producto anterior = leerFila(seg, p.getId());
+                if (anterior != null) escribirFila(seg, p);
+                return anterior;
+            } finally { seg.candado.unlockWrite(sello); }
+        }
+
+        public Producto borrar(long id) {
+            Segmento seg = segmento(id);
+            if (seg == null) return null;
+            long sello = seg.candado.writeLock();
+            try {
+                Producto anterior = leerFila(seg, id);
+                if (anterior != null) {
+                    seg.nombres[(int) (id & MASCARA)] = 0;
+                    tamanio.decrementAndGet();
+                }
+                return anterior;
+            } finally { seg.candado.unlockWrite(sello); }
+        }
+
+        // ✍️ Con el candado del segmento tomado
+        private void escribirFila(Segmento seg, Producto p) {
+            int fila = (int) (p.getId() & MASCARA);
+            int codigo = codificar(p.getNombre()) + 1;
+            seg.precios[fila] = p.getPrecio();
+            seg.stocks[fila] = p.getStock();
+            seg.versiones[fila] = p.getVersion();
+            seg.nombres[fila] = codigo;
+        }
+
+        // 🌍 Crea el segmento (y agranda el array) con el candado global; casi siempre ya existe
+        private Segmento segmentoParaEscribir(long id) {
+            int s = (int) (id >>> BITS_SEGMENTO);
+            Segmento[] segs = segmentos;
+            if (s < segs.length && segs[s] != null) return segs[s];
+            candadoGlobal.lock();
+            try {
+                segs = segmentos;
+                if (s >= segs.length) segs = Arrays.copyOf(segs, Math.max(s + 1, segs.length * 2));
+                if (segs[s] == null) segs[s] = new Segmento();
+                segmentos = segs; // 📢 escritura volatile: publica la casilla nueva a los lectores
+                return segs[s];
+            } finally { candadoGlobal.unlock(); }
+        }
+
+        // 🏷 Un nombre que ya existe (p. ej. en cada reserva de stock) se resuelve sin candado
+        private int codificar(String nombre) {
+            Integer c = codigos.get(nombre);
+            if (c != null) return c;
+            candadoGlobal.lock();
+            try {
+                c = codigos.get(nombre);
+                if (c != null) return c;
+                String[] dic = diccionario;
+                if (totalNombres == dic.length) dic = Arrays.copyOf(dic, dic.length * 2);
+                dic[totalNombres] = nombre;
+                diccionario = dic;
+                codigos.put(nombre, totalNombres);
+                return totalNombres++;
+            } finally { candadoGlobal.unlock(); }
+        }
+
+        // 📑 Recorre las filas ocupadas con ID > id, en orden
+        public Iterable<Producto> despuesDe(long id) {
+            return () -> new Iterator<>() {
+                private long fila = Math.max(id, 0);
+                private Producto siguiente = avanzar();
+
+                private Producto avanzar() {
+                    while (++fila <= maxId.get()) {
+                        Producto p = obtener(fila);
+                        if (p != null) return p;
+                    }
+                    return null;
+                }
+
+                public boolean hasNext() { return siguiente != null; }
+
+                public Producto next() {
+                    if (siguiente == null) throw new NoSuchElementException();
+                    Producto p = siguiente;
+                    siguiente = avanzar();
+                    return p;
+                }
+            };
+        }
+
+        // 🎯 Recorrido secuencial de la columna de precios; solo se crean vistas de las coincidencias
+        public Iterable<Producto> porPrecio(double min, double max) {
+            return () -> new Iterator<>() {
+                private long fila = 0;
+                private Producto siguiente = avanzar();
+
+                private Producto avanzar() {
+                    while (++fila <= maxId.get()) {
+                        Segmento[] segs = segmentos;
+                        int s = (int) (fila >>> BITS_SEGMENTO);
+                        Segmento seg = s < segs.length ? segs[s] : null;
+                        if (seg == null) { fila = ((long) s + 1 << BITS_SEGMENTO) - 1; continue; }
+                        int f = (int) (fila & MASCARA);
+                        double precio = seg.precios[f];
+                        if (seg.nombres[f] == 0 || precio < min || precio > max) continue;
+                        Producto p = obtener(fila); // ✔️ relectura consistente de la fila
+                        if (p != null && p.getPrecio() >= min && p.getPrecio() <= max) return p;
+                    }
+                    return null;
+                }
+
+                public boolean hasNext() { return siguiente != null; }
+
+                public Producto next() {
+                    if (siguiente == null) throw new NoSuchElementException();
+                    Producto p = siguiente;
+                    siguiente = avanzar();
+                    return p;
+                }
+            };
+        }
+
+        // 🧵 Las filas 1..maxId se reparten en rangos; cada hilo lee las suyas sin candado
+        public Stream<Producto> enParalelo() {
+            return LongStream.rangeClosed(1, maxId.get()).parallel().mapToObj(this::obtener).filter(Objects::nonNull);
+        }
+
+        public int tamanio() { return tamanio.get(); }
     }
 
-    private static String jsonError(String msg) {
-        return String.format("{\"error\":\"%s\"}", msg);
+    // 🏆 A partir de este tamaño el top-K se reparte entre núcleos
+    static final int TOP_PARALELO = 100_000;
+
+    /**
+     * 🏆 Montículo acotado: guarda los k mejores vistos hasta ahora
+     * - La cima es el PEOR de los guardados; un producto nuevo solo entra si lo mejora
+     * - unir() mezcla los montículos de cada núcleo (trozos del recorrido paralelo)
+     */
+    static final class MonticuloTop {
+        private final int k;
+        private final Comparator<Producto> orden;
+        private final PriorityQueue<Producto> cola;
+
+        MonticuloTop(int k, Comparator<Producto> orden) {
+            this.k = k;
+            this.orden = orden;
+            this.cola = new PriorityQueue<>(k + 1, orden.reversed());
+        }
+
+        void add(Producto p) {
+            if (cola.size() < k) cola.add(p);
+            else if (orden.compare(p, cola.peek()) < 0) {
+                cola.poll(); // 🗑 fuera el peor
+                cola.add(p);
+            }
+        }
+
+        void unir(MonticuloTop otro) { for (Producto p : otro.cola) add(p); }
+
+        List<Producto> ordenados() {
+            List<Producto> res = new ArrayList<>(cola);
+            res.sort(orden);
+            return res;
+        }
     }
 
-    private static Map<String,String> queryToMap(String q) throws UnsupportedEncodingException {
-        Map<String,String> m = new HashMap<>();
-        if (q == null) return m;
-        for (String param : q.split("&")) {
-            String[] kv = param.split("=");
-            if (kv.length>1) m.put(URLDecoder.decode(kv[0],"UTF-8"), URLDecoder.decode(kv[1],"UTF-8"));
+    // 🔑 Clave del índice de precios: (precio, id) para admitir precios repetidos
+    record ClavePrecio(double precio, long id) implements Comparable<ClavePrecio> {
+        public int compareTo(ClavePrecio o) {
+            int c = Double.compare(precio, o.precio);
+            return c != 0 ? c : Long.compare(id, o.id);
         }
-        return m;
     }
 
     /**
@@ -186,47 +3287,428 @@ public class UT3_ApiRestProductos {
         private String nombre;
         private double precio;
         private int stock;
+        // ⚡ JSON ya codificado en UTF-8; se genera la primera vez que se pide y
+        //    se descarta en cualquier setter (un PUT crea además un Producto nuevo)
+        private volatile byte[] json;
+        private long version; // 🏷 sello que asigna el repositorio en cada escritura
+
+        public Producto() {}
+
+        // 🧱 Reconstrucción desde un almacén: los datos ya se validaron al guardarlos
+        Producto(long id, String nombre, double precio, int stock, long version) {
+            this.id = id;
+            this.nombre = nombre;
+            this.precio = precio;
+            this.stock = stock;
+            this.version = version;
+        }
 
         public long getId() { return id; }
-        public void setId(long id) { this.id = id; }
+        public void setId(long id) { this.id = id; json = null; }
+
+        public long getVersion() { return version; }
+        void setVersion(long version) { this.version = version; }
 
         public String getNombre() { return nombre; }
         public void setNombre(String nombre) {
             if (nombre == null || nombre.isBlank()) throw new IllegalArgumentException("El nombre es obligatorio");
             if (nombre.length() > 50) throw new IllegalArgumentException("Nombre muy largo (máx 50)");
             this.nombre = nombre;
+            json = null;
         }
 
         public double getPrecio() { return precio; }
         public void setPrecio(double precio) {
             if (precio < 0) throw new IllegalArgumentException("El precio no puede ser negativo");
+            if (Double.isNaN(precio) || Double.isInfinite(precio)) throw new IllegalArgumentException("El precio no es válido");
             this.precio = precio;
+            json = null;
         }
 
         public int getStock() { return stock; }
         public void setStock(int stock) {
             if (stock < 0) throw new IllegalArgumentException("El stock no puede ser negativo");
             this.stock = stock;
+            json = null;
         }
 
         public String toJson() {
-            return String.format("{\"id\":%d,\"nombre\":\"%s\",\"precio\":%.2f,\"stock\":%d}",
-                                  id, nombre, precio, stock);
+            return new String(toJsonBytes(), StandardCharsets.UTF_8);
         }
 
-        public static Producto fromJson(String json) {
-            Map<String,String> map = new HashMap<>();
-            json = json.replaceAll("[{}\"]","");
-            for (String pair : json.split(",")) {
-                String[] kv = pair.split(":");
-                map.put(kv[0].trim(), kv[1].trim());
+        /**
+         * ⚡ Bytes UTF-8 del JSON, cacheados: no se deben modificar.
+         * Las lecturas (obtener, listar, mascaros) copian este array sin volver a formatear.
+         */
+        public byte[] toJsonBytes() {
+            byte[] b = json;
+            if (b == null) {
+                String s = "{\"id\":" + id + ",\"nombre\":\"" + escaparJson(nombre)
+                         + "\",\"precio\":" + formatearPrecio(precio) + ",\"stock\":" + stock + "}";
+                json = b = s.getBytes(StandardCharsets.UTF_8);
+            }
+            return b;
+        }
+
+        // 💶 Igual que %.2f (redondeo HALF_UP) pero sin Formatter y siempre con punto decimal
+        static String formatearPrecio(double precio) {
+            return new BigDecimal(Double.toString(precio)).setScale(2, RoundingMode.HALF_UP).toPlainString();
+        }
+
+        // 🛡 El nombre puede traer comillas o barras (el lector admite escapes): se escapan al salir
+        static String escaparJson(String s) {
+            StringBuilder sb = null;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c != '"' && c != '\\' && c >= 0x20) {
+                    if (sb != null) sb.append(c);
+                    continue;
+                }
+                if (sb == null) sb = new StringBuilder(s.length() + 8).append(s, 0, i);
+                switch (c) {
+                    case '"' -> sb.append("\\\"");
+                    case '\\' -> sb.append("\\\\");
+                    case '\n' -> sb.append("\\n");
+                    case '\r' -> sb.append("\\r");
+                    case '\t' -> sb.append("\\t");
+                    default -> sb.append(String.format("\\u%04x", (int) c));
+                }
             }
+            return sb == null ? s : sb.toString();
+        }
+
+        public static Producto fromJson(String json) {
+            byte[] b = json.getBytes(StandardCharsets.UTF_8);
+            return fromJson(b, 0, b.length);
+        }
+
+        // 📥 Rellena los campos directamente mientras se recorre el JSON (sin Map ni regex)
+        public static Producto fromJson(byte[] b, int desde, int hasta) {
+            LectorJson json = new LectorJson(b, desde, hasta);
             Producto p = new Producto();
-            p.setNombre(map.get("nombre"));
-            p.setPrecio(Double.parseDouble(map.getOrDefault("precio","0")));
-            p.setStock(Integer.parseInt(map.getOrDefault("stock","0")));
+            json.inicioObjeto();
+            while (json.siguienteCampo())
+                if (!p.leerCampo(json)) json.saltarValor(); // id u otros campos se ignoran
+            p.comprobarObligatorios();
             return p;
         }
+
+        // 🧩 Lee el valor si la clave es un campo del producto (true) o no lo toca (false)
+        boolean leerCampo(LectorJson json) {
+            if (json.claveEs("nombre")) setNombre(json.leerTexto());
+            else if (json.claveEs("precio")) setPrecio(json.leerDouble());
+            else if (json.claveEs("stock")) setStock(json.leerInt());
+            else return false;
+            return true;
+        }
+
+        void comprobarObligatorios() {
+            if (nombre == null) setNombre(null); // ❗ lanza "El nombre es obligatorio"
+        }
+    }
+
+    /**
+     * 📦 Una línea de un lote NDJSON ya validada (o con el error que la invalida).
+     * Los errores de una línea no impiden aplicar las demás.
+     */
+    record OperacionLote(int linea, String tipo, long id, Producto producto, String error) {
+
+        static OperacionLote leer(int linea, byte[] b, int desde, int hasta) {
+            try {
+                LectorJson json = new LectorJson(b, desde, hasta);
+                Producto p = new Producto();
+                String tipo = "crear";
+                long id = -1;
+                json.inicioObjeto();
+                while (json.siguienteCampo()) {
+                    if (json.claveEs("op")) tipo = json.leerTexto();
+                    else if (json.claveEs("id")) id = json.leerLong();
+                    else if (!p.leerCampo(json)) json.saltarValor();
+                }
+                if (!"crear".equals(tipo) && !"actualizar".equals(tipo) && !"eliminar".equals(tipo))
+                    throw new IllegalArgumentException("op debe ser crear, actualizar o eliminar");
+                if (!tipo.equals("crear") && id < 0) throw new IllegalArgumentException("Falta el id");
+                if (!tipo.equals("eliminar")) p.comprobarObligatorios();
+                return new OperacionLote(linea, tipo, id, p, null);
+            } catch (IllegalArgumentException e) {
+                return new OperacionLote(linea, null, -1, null, e.getMessage());
+            }
+        }
+
+        String resultado(int status, String extra) {
+            return "{\"linea\":" + linea + ",\"status\":" + status + "," + extra + "}";
+        }
+    }
+
+    /**
+     * 📜 Lector de líneas sobre un InputStream con un buffer fijo (del pool).
+     * Cada línea se expone como un tramo [inicio, fin) del buffer, sin copiarla;
+     * el tramo solo es válido hasta la siguiente llamada a siguiente().
+     */
+    static class LectorLineas {
+        private final InputStream in;
+        private final byte[] buf;
+        private int ini, fin, explorado, lineaIni, lineaFin;
+        private boolean eof;
+
+        LectorLineas(InputStream in, byte[] buf) {
+            this.in = in;
+            this.buf = buf;
+        }
+
+        boolean siguiente() throws IOException {
+            while (true) {
+                for (int i = explorado; i < fin; i++) {
+                    if (buf[i] == '\n') {
+                        marcar(i);
+                        ini = explorado = i + 1;
+                        return true;
+                    }
+                }
+                explorado = fin;
+                if (eof) {
+                    if (ini == fin) return false;
+                    marcar(fin);
+                    ini = explorado = fin;
+                    return true;
+                }
+                if (ini > 0) { // 🧹 compacta lo pendiente al principio del buffer
+                    System.arraycopy(buf, ini, buf, 0, fin - ini);
+                    fin -= ini; explorado -= ini; ini = 0;
+                }
+                if (fin == buf.length) throw new IllegalArgumentException("Línea demasiado larga (máx " + buf.length + " bytes)");
+                int n = in.read(buf, fin, buf.length - fin);
+                if (n < 0) eof = true; else fin += n;
+            }
+        }
+
+        private void marcar(int finLinea) {
+            lineaIni = ini;
+            lineaFin = finLinea > ini && buf[finLinea - 1] == '\r' ? finLinea - 1 : finLinea;
+        }
+
+        boolean vacia() {
+            for (int i = lineaIni; i < lineaFin; i++) if (buf[i] != ' ' && buf[i] != '\t') return false;
+            return true;
+        }
+
+        byte[] datos() { return buf; }
+        int inicio() { return lineaIni; }
+        int fin() { return lineaFin; }
+    }
+
+    /**
+     * 🔍 Lector JSON de una sola pasada sobre los bytes del body
+     * - Sin expresiones regulares, sin split y sin Map intermedio
+     * - Solo admite un objeto plano con valores string, número, true, false o null
+     * - Strings con escapes (comillas, barra, \n, unicode de 4 cifras...), así que comas y dos puntos en
+     *   el nombre ya no rompen nada
+     * - Objetos o arrays anidados se rechazan con IllegalArgumentException (→ 400)
+     */
+    static class LectorJson {
+        private static final double[] POTENCIAS_10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+        };
+
+        private final byte[] b;
+        private final int inicio, fin;
+        private int pos;
+        private int claveIni, claveFin;
+        private boolean primerCampo = true;
+
+        LectorJson(byte[] b, int desde, int hasta) {
+            this.b = b;
+            this.pos = this.inicio = desde;
+            this.fin = hasta;
+        }
+
+        void inicioObjeto() {
+            saltarEspacios();
+            esperar('{');
+        }
+
+        // ➡️ Avanza hasta el valor del siguiente campo; false al cerrar el objeto
+        boolean siguienteCampo() {
+            saltarEspacios();
+            if (pos < fin && b[pos] == '}') {
+                pos++;
+                saltarEspacios();
+                if (pos != fin) throw error("contenido tras el cierre del objeto");
+                return false;
+            }
+            if (!primerCampo) {
+                esperar(',');
+                saltarEspacios();
+            }
+            primerCampo = false;
+            esperar('"');
+            claveIni = pos;
+            while (pos < fin && b[pos] != '"') {
+                if (b[pos] == '\\') pos++;
+                pos++;
+            }
+            if (pos >= fin) throw error("clave sin cerrar");
+            claveFin = pos++;
+            saltarEspacios();
+            esperar(':');
+            saltarEspacios();
+            return true;
+        }
+
+        // 🔑 Compara la clave actual con un nombre ASCII sin crear un String
+        boolean claveEs(String nombre) {
+            if (claveFin - claveIni != nombre.length()) return false;
+            for (int i = 0; i < nombre.length(); i++)
+                if (b[claveIni + i] != nombre.charAt(i)) return false;
+            return true;
+        }
+
+        String leerTexto() {
+            if (literal("null")) return null;
+            esperar('"');
+            int ini = pos;
+            while (pos < fin && b[pos] != '"' && b[pos] != '\\') {
+                if ((b[pos] & 0xFF) < 0x20) throw error("carácter de control en texto");
+                pos++;
+            }
+            if (pos >= fin) throw error("texto sin cerrar");
+            if (b[pos] == '"') return new String(b, ini, pos++ - ini, StandardCharsets.UTF_8);
+            // 🐢 Camino lento solo si hay escapes
+            StringBuilder sb = new StringBuilder().append(new String(b, ini, pos - ini, StandardCharsets.UTF_8));
+            while (true) {
+                if (pos >= fin) throw error("texto sin cerrar");
+                byte c = b[pos];
+                if (c == '"') { pos++; return sb.toString(); }
+                if (c == '\\') {
+                    if (++pos >= fin) throw error("escape incompleto");
+                    switch (b[pos++]) {
+                        case '"' -> sb.append('"');
+                        case '\\' -> sb.append('\\');
+                        case '/' -> sb.append('/');
+                        case 'b' -> sb.append('\b');
+                        case 'f' -> sb.append('\f');
+                        case 'n' -> sb.append('\n');
+                        case 'r' -> sb.append('\r');
+                        case 't' -> sb.append('\t');
+                        case 'u' -> sb.append(leerHex4());
+                        default -> throw error("escape no válido");
+                    }
+                } else {
+                    int ini2 = pos;
+                    while (pos < fin && b[pos] != '"' && b[pos] != '\\') {
+                        if ((b[pos] & 0xFF) < 0x20) throw error("carácter de control en texto");
+                        pos++;
+                    }
+                    sb.append(new String(b, ini2, pos - ini2, StandardCharsets.UTF_8));
+                }
+            }
+        }
+
+        private char leerHex4() {
+            if (pos + 4 > fin) throw error("escape unicode incompleto");
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                int d = Character.digit(b[pos++], 16);
+                if (d < 0) throw error("escape unicode no válido");
+                v = (v << 4) | d;
+            }
+            return (char) v;
+        }
+
+        /**
+         * 🔢 Número decimal. Con hasta 15 cifras significativas y exponente pequeño
+         * el resultado es exacto con una sola multiplicación o división; en otro caso
+         * se delega en Double.parseDouble.
+         */
+        double leerDouble() {
+            int ini = pos;
+            boolean negativo = pos < fin && b[pos] == '-';
+            if (negativo) pos++;
+            long mantisa = 0;
+            int cifras = 0, exp10 = 0;
+            int inicioDigitos = pos;
+            while (pos < fin && b[pos] >= '0' && b[pos] <= '9') {
+                if (cifras < 18) { mantisa = mantisa * 10 + (b[pos] - '0'); if (mantisa != 0) cifras++; }
+                else exp10++;
+                pos++;
+            }
+            if (pos == inicioDigitos) throw error("número esperado");
+            if (pos < fin && b[pos] == '.') {
+                pos++;
+                int ini2 = pos;
+                while (pos < fin && b[pos] >= '0' && b[pos] <= '9') {
+                    if (cifras < 18) { mantisa = mantisa * 10 + (b[pos] - '0'); if (mantisa != 0) cifras++; exp10--; }
+                    pos++;
+                }
+                if (pos == ini2) throw error("número mal formado");
+            }
+            boolean conExponente = pos < fin && (b[pos] == 'e' || b[pos] == 'E');
+            if (conExponente) {
+                pos++;
+                if (pos < fin && (b[pos] == '+' || b[pos] == '-')) pos++;
+                int ini3 = pos;
+                while (pos < fin && b[pos] >= '0' && b[pos] <= '9') pos++;
+                if (pos == ini3) throw error("exponente mal formado");
+            }
+            if (!conExponente && cifras <= 15 && exp10 >= -22 && exp10 <= 22) {
+                double v = exp10 < 0 ? mantisa / POTENCIAS_10[-exp10] : mantisa * POTENCIAS_10[exp10];
+                return negativo ? -v : v;
+            }
+            return Double.parseDouble(new String(b, ini, pos - ini, StandardCharsets.ISO_8859_1));
+        }
+
+        long leerLong() {
+            boolean negativo = pos < fin && b[pos] == '-';
+            if (negativo) pos++;
+            int ini = pos;
+            long v = 0;
+            while (pos < fin && b[pos] >= '0' && b[pos] <= '9') {
+                int d = b[pos++] - '0';
+                if (v > (Long.MAX_VALUE - d) / 10) throw error("entero demasiado grande");
+                v = v * 10 + d;
+            }
+            if (pos == ini) throw error("entero esperado");
+            if (pos < fin && (b[pos] == '.' || b[pos] == 'e' || b[pos] == 'E')) throw error("se esperaba un entero");
+            return negativo ? -v : v;
+        }
+
+        int leerInt() {
+            long v = leerLong();
+            if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) throw error("entero fuera de rango");
+            return (int) v;
+        }
+
+        // ⏭ Ignora el valor de un campo que no nos interesa
+        void saltarValor() {
+            if (pos >= fin) throw error("valor esperado");
+            byte c = b[pos];
+            if (c == '{' || c == '[') throw error("no se admiten objetos ni arrays anidados");
+            if (c == '"') leerTexto();
+            else if (literal("true") || literal("false") || literal("null")) return;
+            else leerDouble();
+        }
+
+        private boolean literal(String s) {
+            if (fin - pos < s.length()) return false;
+            for (int i = 0; i < s.length(); i++)
+                if (b[pos + i] != s.charAt(i)) return false;
+            pos += s.length();
+            return true;
+        }
+
+        private void saltarEspacios() {
+            while (pos < fin && (b[pos] == ' ' || b[pos] == '\t' || b[pos] == '\n' || b[pos] == '\r')) pos++;
+        }
+
+        private void esperar(char c) {
+            if (pos >= fin || b[pos] != c) throw error("se esperaba '" + c + "'");
+            pos++;
+        }
+
+        private IllegalArgumentException error(String motivo) {
+            return new IllegalArgumentException("JSON inválido: " + motivo + " (posición " + (pos - inicio) + ")");
+        }
     }
 }
 
@@ -253,11 +3735,19 @@ public class UT3_ApiRestProductos {
  *    Lista todos los productos existentes.
  *    ✔️ Esperado: array de objetos JSON.
  *
+ *    📑 GET /productos?limit=2
+ *    ✔️ Esperado: {"datos":[...2 productos...],"next":"cursor"}
+ *    Repite con GET /productos?limit=2&after=<cursor> hasta que next sea null.
+ *
  * 3. 🔍 GET /productos/1
  *    Consulta un producto concreto por ID (ej. ID 1).
  *    ✔️ Esperado: objeto JSON del producto.
  *    ❌ Si no existe: error 404.
  *
+ *    🏷 Repite la petición con la cabecera If-None-Match: <valor del ETag recibido>
+ *    ✔️ Esperado: 304 sin cuerpo mientras el producto no cambie.
+ *    (Lo mismo con GET /productos: el ETag cambia con cualquier alta, cambio o borrado.)
+ *
  * 4. 🔁 PUT /productos/1
  *    Actualiza un producto existente. Body:
  *    {
@@ -277,9 +3767,19 @@ public class UT3_ApiRestProductos {
     * ----------------------------------
     * 6. 🔍 GET /productos/mascaros?precio=20
     *    Filtra productos con precio >= 20
-    *    ✔️ Esperado: array con productos filtrados.
+    *    ✔️ Esperado: array con productos filtrados, ordenados por precio.
+    *    Con GET /productos/mascaros?precio=20&precioMax=50 → 20 <= precio <= 50
     *    ❌ Si query mal formada: error 400.
  *
+ * 📦 CARGA MASIVA (NDJSON):
+ * -------------------------
+ * 6b. POST /productos/_bulk   (Content-Type: application/x-ndjson)
+ *    {"op":"crear","nombre":"Gorra","precio":12,"stock":5}
+ *    {"op":"actualizar","id":1,"nombre":"Sudadera XL","precio":31,"stock":8}
+ *    {"op":"eliminar","id":2}
+ *    ✔️ Esperado: 200 y una línea de resultado por operación:
+ *       {"linea":1,"status":201,"id":3} ... {"linea":3,"status":404,"error":"Producto no encontrado"}
+ *
  * ⚠️ PRUEBAS DE VALIDACIONES Y ERRORES:
  * --------------------------------------
  * 7. ❌ POST sin campo "nombre"
@@ -305,6 +3805,98 @@ public class UT3_ApiRestProductos {
  *    }
  *    ❌ Esperado: error 400 con mensaje "Nombre muy largo"
  *
+ * 9b. ✅ POST con comas y comillas escapadas en el nombre
+ *    { "nombre": "Taza \"XL\", roja: 2 uds", "precio": 7.5 }
+ *    ✔️ Esperado: 201, el nombre se guarda completo.
+ *    ❌ { "nombre": "Taza", "extra": { "a": 1 } } → 400 (objetos anidados no admitidos)
+ *
+ * 9c. ❌ POST con un body de más de 16 KB (p. ej. un archivo grande por error)
+ *    ❌ Esperado: 413 "Body demasiado grande" sin esperar a que termine de subir.
+ *    Una petición que tarda más de 30 s en llegar se corta (-Dsun.net.httpserver.maxReqTime=N).
+ *
+ * 🔎 BÚSQUEDA:
+ * -----------
+ * GET /productos/buscar?q=orr            → ✔️ "Gorra", "Porra"... (sin distinguir mayúsculas)
+ * GET /productos/buscar?q=cam&limit=5    → ✔️ como mucho 5, primero los que empiezan por "cam"
+ * GET /productos/buscar?q=ab             → ❌ 400 (mínimo 3 caracteres)
+ *
+ * 🏆 TOP-K:
+ * --------
+ * GET /productos/top                          → ✔️ los 10 más caros
+ * GET /productos/top?por=stock&orden=asc&k=20 → ✔️ los 20 con menos stock (para reponer)
+ * GET /productos/top?k=500                    → ❌ 400 (k entre 1 y 100)
+ *
+ * 📈 ESTADÍSTICAS:
+ * ---------------
+ * GET /productos/stats
+ * ✔️ Esperado: {"productos":3,"stockTotal":12,"valorInventario":84.50,
+ *              "precioMin":5.00,"precioMedio":9.17,"precioMax":15.00,"siguienteId":4}
+ *    (con el catálogo vacío los precios salen null)
+ *
+ * 📡 CAMBIOS EN VIVO (SSE):
+ * ------------------------
+ * curl -N http://localhost:8000/productos/cambios   (y en otra terminal crea/borra productos)
+ * ✔️ Esperado: líneas "id: 7 / event: crear / data: {...}" según ocurren, y ": latido" cada 15 s.
+ * curl -N -H "Last-Event-ID: 3" http://localhost:8000/productos/cambios
+ * ✔️ Esperado: primero los eventos 4, 5, 6... que te perdiste; "event: reinicio" si ya son muy viejos.
+ * Desde el navegador: new EventSource("http://localhost:8000/productos/cambios").onmessage...
+ *    (usa addEventListener("crear", ...) porque cada evento lleva su tipo)
+ * Suscríbete con un cliente que no lee (p. ej. curl -N ... | sleep 60) y lanza un _bulk grande
+ * ✔️ Esperado: a los ~10 s el servidor corta esa conexión y su hueco de suscriptor queda libre.
+ *
+ * 🛒 RESERVAS DE STOCK:
+ * --------------------
+ * POST /productos/1/reservar?cantidad=2  → ✔️ 200 con el stock ya descontado
+ * POST /productos/1/reservar?cantidad=999 → ❌ 409 "Stock insuficiente: quedan N"
+ * POST /productos/1/liberar?cantidad=2   → ✔️ 200, el stock vuelve a subir
+ * (lanza muchas reservas a la vez: el stock nunca baja de 0 ni se pierde ninguna)
+ *
+ * 🗜 COMPRESIÓN:
+ * --------------
+ * Crea unos cuantos productos y pide GET /productos con la cabecera
+ *     Accept-Encoding: gzip
+ * ✔️ Esperado: Content-Encoding: gzip si la respuesta pasa de 1 KB (curl --compressed lo descomprime).
+ *
+ * 📊 MÉTRICAS:
+ * ------------
+ * GET /metrics
+ * ✔️ Esperado: texto tipo Prometheus con productos_peticiones_total,
+ *    productos_bytes_*_total y productos_latencia_segundos{quantile=...} por ruta.
+ *
+ * 🚦 CONTROL DE ADMISIÓN:
+ * ----------------------
+ * Arranca con TASA_IP=5 RAFAGA_IP=5 y lanza 20 GET /productos seguidos
+ * ✔️ Esperado: las 5 primeras 200 y después 429 con cabecera Retry-After.
+ * Con HILOS=1 LATENCIA_OBJETIVO_MS=50 y mucha carga concurrente → 503 rápidos
+ * en lugar de colas de segundos. GET /salud responde siempre (enCurso, limite, rechazos).
+ *
+ * 💾 SNAPSHOT Y REINICIO:
+ * ---------------------
+ * SNAPSHOT=productos.snap java UT3_ApiRestProductos (sin SNAPSHOT no se guarda nada)
+ * Crea productos, espera 30 s (o para el servidor con Ctrl+C) y vuelve a arrancarlo
+ * ✔️ Esperado: "📂 N productos cargados de productos.snap" y los mismos IDs.
+ * SNAPSHOT_SEG=5 guarda más a menudo.
+ * Cambia un byte en medio de productos.snap y arranca otra vez
+ * ✔️ Esperado: aviso "Snapshot dañado", catálogo vacío y el archivo apartado en productos.snap.danado.
+ *
+ * 📈 PRUEBA DE CARGA (en vez de repetir clics):
+ * --------------------------------------------
+ * java UT3_ApiRestProductos   (sin TASA_IP no hay límite por IP que falsee la medida)
+ * java -Dcarga.tasas=200,500,1000,2000 UT7_GeneradorCarga
+ * ✔️ Esperado: tabla con p50/p99 por escalón y el punto de saturación del servidor.
+ *
+ * 🧭 MODO REPARTIDOR (catálogo en varios nodos):
+ * ---------------------------------------------
+ * CLAVE_REPARTIDOR=secreto MODO=router NODOS=3 java UT3_ApiRestProductos   (nodos en 8001, 8002 y 8003)
+ * Crea productos en :8000 y compara GET /productos/stats de cada nodo
+ * ✔️ Esperado: cada nodo con ~1/3 de los productos; GET :8000/productos los da todos por ID.
+ * PUT :8001/productos/9223372036854775807 con If-None-Match: * (directo al nodo, sin clave)
+ * ✔️ Esperado: 403; solo el repartidor da de alta con ID elegido (también con un ID ya borrado).
+ * En otra consola: PORT=8004 CLAVE_REPARTIDOR=secreto java UT3_ApiRestProductos
+ * POST /admin/nodos   { "url": "http://localhost:8004" }
+ * ✔️ Esperado: "movidos" ≈ 1/4 del catálogo y los mismos productos por :8000.
+ * DELETE /admin/nodos?url=http://localhost:8004 los devuelve a los otros tres.
+ *
  * 🔄 CORS Y FETCH DESDE HTML:
  * ----------------------------
  * 10. Desde un archivo HTML local, crea un botón que haga fetch:
@@ -318,7 +3910,9 @@ public class UT3_ApiRestProductos {
  * 12. Hacer una tabla en HTML que muestre los productos usando fetch.
  * 13. Crear un formulario que permita añadir productos usando POST.
  * 14. Implementar buscador en frontend por ID.
- * 15. Probar simultáneamente varias peticiones para ver concurrencia.
+ * 15. Probar simultáneamente varias peticiones para ver concurrencia
+ *     (arranca con HILOS=1 y luego con HILOS=8 y compara los tiempos).
+ *     Con EJECUTOR=comparar: hilos virtuales en :8000 y pool fijo en :8001.
  * 16. Adaptar a cliente móvil con Postman o Insomnia.
  *
  * ✅ Recomendación: Exporta tus pruebas en Thunder Client como colección para reutilizarlas.
@@ -0,0 +1,221 @@
+/**
+ * 📘 UT3 - Banco de pruebas de rendimiento de la API de productos (Java puro)
+ * ==========================================================================
+ * Mide los caminos más usados de UT3_ApiRestProductos sin levantar el servidor:
+ * ✔️ Producto.toJsonBytes (cacheado y generándolo de cero) y Producto.fromJson
+ * ✔️ queryToMap (parámetros de la URL)
+ * ✔️ GET /productos/{id}: enrutador + responder (con y sin gzip)
+ * ✔️ GET /productos (primera página y página del final) y /productos/mascaros
+ *    con catálogos de 1.000 a 10.000.000 productos
+ *
+ * 🧠 ¿Cómo se mide?
+ * -----------------
+ * • Calentamiento: unas rondas que no cuentan, para que el JIT compile el código
+ * • Rondas de medida de duración fija: ns/op = tiempo de la ronda / operaciones
+ * • B/op: bytes reservados por el hilo (com.sun.management.ThreadMXBean) / operaciones;
+ *   es la "tasa de asignación" que presiona al recolector de basura
+ * • El resultado de cada operación se guarda en un campo volatile (sumidero)
+ *   para que el JIT no elimine el trabajo por "inútil"
+ * • Los handlers se llaman con un HttpExchange falso (IntercambioBanco) que
+ *   descarta la respuesta: se mide el código de la API, no la red
+ *
+ * ▶️ Uso:
+ *   javac -encoding UTF-8 UT3_ApiRestProductos.java UT3_BenchmarkProductos.java
+ *   java -Xmx4g UT3_BenchmarkProductos                        # 1k, 10k, 100k y 1M
+ *   java -Xmx16g UT3_BenchmarkProductos 1000 10000000         # tamaños a elegir
+ *   java UT3_BenchmarkProductos json                          # solo los que contienen "json"
+ *   ALMACEN=columnar java -Xmx4g UT3_BenchmarkProductos       # almacén columnar
+ *   -Dbench.rondas=5 -Dbench.ms=500 -Dbench.calentamiento=3   # duración (valores por defecto)
+ *
+ * 📏 Antes y después de un cambio:
+ *   java UT3_BenchmarkProductos > antes.txt   (aplicar el cambio, recompilar)
+ *   java UT3_BenchmarkProductos > despues.txt y comparar las dos tablas
+ *   Las diferencias menores que la columna ± son ruido.
+ */
+
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class UT3_BenchmarkProductos {
+
+    static final int RONDAS = Integer.getInteger("bench.rondas", 5);
+    static final int MS_RONDA = Integer.getInteger("bench.ms", 500);
+    static final int CALENTAMIENTO = Integer.getInteger("bench.calentamiento", 3);
+
+    static final com.sun.management.ThreadMXBean HILOS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // 🕳 Sumidero: el JIT no puede eliminar una escritura volatile
+    static volatile Object sumidero;
+
+    static String filtro = "";
+
+    // 🎯 Una operación a medir; devuelve algo para el sumidero
+    @FunctionalInterface
+    interface Tarea {
+        Object ejecutar() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<Integer> tamanios = new ArrayList<>();
+        for (String a : args) {
+            if (a.chars().allMatch(Character::isDigit)) tamanios.add(Integer.parseInt(a));
+            else filtro = a;
+        }
+        if (tamanios.isEmpty()) tamanios = List.of(1_000, 10_000, 100_000, 1_000_000);
+        Collections.sort(tamanios);
+
+        System.out.printf("# %s %s · %d núcleos · heap máx %d MB · almacén %s%n",
+                System.getProperty("java.vm.name"), System.getProperty("java.version"),
+                Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory() >> 20,
+                Optional.ofNullable(System.getenv("ALMACEN")).orElse("mapa"));
+        System.out.printf("# %d rondas de %d ms (+%d de calentamiento)%n", RONDAS, MS_RONDA, CALENTAMIENTO);
+        System.out.printf("%-40s %10s %12s %9s %14s %10s%n", "Benchmark", "Tamaño", "ns/op", "±", "ops/s", "B/op");
+
+        microbenchmarks();
+
+        // 📚 El catálogo global crece de un tamaño al siguiente: solo se añade la diferencia
+        int cargados = 0;
+        for (int n : tamanios) {
+            cargar(cargados, n);
+            cargados = n;
+            System.gc();
+            catalogo(n);
+        }
+    }
+
+    // 🔬 Operaciones que no dependen del tamaño del catálogo
+    static void microbenchmarks() throws Exception {
+        UT3_ApiRestProductos.Producto p = new UT3_ApiRestProductos.Producto(
+                42, "Camiseta \"técnica\" azul", 19.95, 7, 1);
+        byte[] json = "{\"nombre\":\"Camiseta técnica azul\",\"precio\":19.95,\"stock\":7}"
+                .getBytes(StandardCharsets.UTF_8);
+        String query = "precio=10.5&precioMax=99&limit=50&after=cDEyMzQ";
+
+        medir("Producto.toJsonBytes (cacheado)", 0, p::toJsonBytes);
+        medir("Producto.toJsonBytes (sin caché)", 0, () ->
+                new UT3_ApiRestProductos.Producto(42, "Camiseta \"técnica\" azul", 19.95, 7, 1).toJsonBytes());
+        medir("Producto.fromJson", 0, () -> UT3_ApiRestProductos.Producto.fromJson(json, 0, json.length));
+        medir("queryToMap", 0, () -> UT3_ApiRestProductos.queryToMap(query));
+    }
+
+    // 📦 Handlers completos sobre un catálogo de n productos
+    static void catalogo(int n) throws Exception {
+        String uno = "/productos/" + Math.max(1, n / 2), ninguno = "/productos/" + (n + 10L);
+        String paginaFinal = "/productos?limit=1000&after=" + UT3_ApiRestProductos.Cursor.codificar(Math.max(0, n - 1000));
+        IntercambioBanco ex = new IntercambioBanco();
+
+        medir("GET /productos/{id}", n, () -> ex.atender("GET", uno, null));
+        medir("GET /productos/{id} (404)", n, () -> ex.atender("GET", ninguno, null));
+        medir("GET /productos?limit=1000", n, () -> ex.atender("GET", "/productos?limit=1000", null));
+        medir("GET /productos?after=(final)", n, () -> ex.atender("GET", paginaFinal, null));
+        medir("GET /productos?limit=1000 (gzip)", n, () ->
+                ex.atender("GET", "/productos?limit=1000", "gzip"));
+        // 💶 Los precios van de 0,50 a 500: el tramo 100-101 (100, 100,5 y 101) es el 0,3 % del catálogo
+        medir("GET /productos/mascaros (0,3 %)", n, () ->
+                ex.atender("GET", "/productos/mascaros?precio=100&precioMax=101", null));
+    }
+
+    // 🧱 Añade los productos con ID desde+1..hasta (sin eventos de cambio: como al cargar un snapshot)
+    static void cargar(int desde, int hasta) {
+        long t0 = System.nanoTime();
+        List<UT3_ApiRestProductos.Producto> lote = new ArrayList<>(65_536);
+        for (int i = desde + 1; i <= hasta; i++) {
+            lote.add(new UT3_ApiRestProductos.Producto(i, "Producto " + i, (i % 1000) / 2.0 + 0.5, i % 50, 0));
+            if (lote.size() == 65_536) { UT3_ApiRestProductos.productos.restaurar(lote, 0); lote.clear(); }
+        }
+        UT3_ApiRestProductos.productos.restaurar(lote, 0);
+        System.out.printf("# catálogo con %,d productos (%d ms)%n", hasta, (System.nanoTime() - t0) / 1_000_000);
+    }
+
+    /**
+     * ⏱ Mide una tarea: rondas de MS_RONDA ms, la media de ns/op entre rondas
+     * y la desviación típica (±). Los bytes por operación se cuentan en todas.
+     */
+    static void medir(String nombre, int tamanio, Tarea t) throws Exception {
+        if (!nombre.toLowerCase().contains(filtro.toLowerCase())) return;
+        for (int i = 0; i < CALENTAMIENTO; i++) ronda(t);
+        double[] nsOp = new double[RONDAS];
+        long ops = 0, bytes = 0;
+        for (int i = 0; i < RONDAS; i++) {
+            long[] r = ronda(t);
+            nsOp[i] = (double) r[1] / r[0];
+            ops += r[0];
+            bytes += r[2];
+        }
+        double media = Arrays.stream(nsOp).average().orElse(0);
+        double desv = Math.sqrt(Arrays.stream(nsOp).map(x -> (x - media) * (x - media)).sum() / Math.max(1, RONDAS - 1));
+        System.out.printf("%-40s %10s %12.1f %9.1f %14.0f %10d%n", nombre, tamanio == 0 ? "-" : String.format("%,d", tamanio),
+                media, desv, 1e9 / media, bytes / ops);
+    }
+
+    // 🔁 Una ronda: repite la tarea en tandas hasta cumplir MS_RONDA → {ops, ns, bytes}
+    static long[] ronda(Tarea t) throws Exception {
+        long limite = MS_RONDA * 1_000_000L;
+        long ops = 0, tanda = 1;
+        long bytes0 = HILOS.getCurrentThreadAllocatedBytes();
+        long t0 = System.nanoTime(), transcurrido;
+        do {
+            for (long i = 0; i < tanda; i++) sumidero = t.ejecutar();
+            ops += tanda;
+            if (tanda < 1024) tanda *= 2;          // ⚖️ pocas lecturas del reloj en tareas rápidas
+            transcurrido = System.nanoTime() - t0;
+        } while (transcurrido < limite);
+        return new long[]{ops, transcurrido, HILOS.getCurrentThreadAllocatedBytes() - bytes0};
+    }
+
+    /**
+     * 🎭 HttpExchange falso y reutilizable: la petición se fija en atender() y la
+     * respuesta se cuenta y se descarta. Pasa por handleProductos igual que una
+     * petición real (CORS, enrutador, ETag, streaming y gzip).
+     */
+    static final class IntercambioBanco extends HttpExchange {
+        private final Headers peticion = new Headers(), respuesta = new Headers();
+        private final InputStream cuerpo = InputStream.nullInputStream();
+        private final OutputStream salida = new OutputStream() {
+            public void write(int b) { enviados++; }
+            public void write(byte[] b, int off, int len) { enviados += len; }
+        };
+        private String metodo;
+        private URI uri;
+        private int codigo;
+        private long enviados;
+
+        // ▶️ Ejecuta una petición (la URI se analiza cada vez, como en el servidor) y devuelve el código
+        Object atender(String metodo, String ruta, String aceptaCodificacion) throws IOException {
+            this.metodo = metodo;
+            this.uri = URI.create(ruta);
+            peticion.clear();
+            respuesta.clear();
+            if (aceptaCodificacion != null) peticion.set("Accept-Encoding", aceptaCodificacion);
+            codigo = -1;
+            enviados = 0;
+            UT3_ApiRestProductos.handleProductos(this);
+            if (codigo < 0) throw new IllegalStateException("Sin respuesta para " + metodo + " " + ruta);
+            return codigo;
+        }
+
+        public Headers getRequestHeaders() { return peticion; }
+        public Headers getResponseHeaders() { return respuesta; }
+        public URI getRequestURI() { return uri; }
+        public String getRequestMethod() { return metodo; }
+        public HttpContext getHttpContext() { return null; }
+        public void close() { }
+        public InputStream getRequestBody() { return cuerpo; }
+        public OutputStream getResponseBody() { return salida; }
+        public void sendResponseHeaders(int rCode, long responseLength) { codigo = rCode; }
+        public InetSocketAddress getRemoteAddress() { return new InetSocketAddress("127.0.0.1", 50000); }
+        public int getResponseCode() { return codigo; }
+        public InetSocketAddress getLocalAddress() { return new InetSocketAddress("127.0.0.1", 8000); }
+        public String getProtocol() { return "HTTP/1.1"; }
+        public Object getAttribute(String name) { return null; }
+        public void setAttribute(String name, Object value) { }
+        public void setStreams(InputStream i, OutputStream o) { }
+        public HttpPrincipal getPrincipal() { return null; }
+    }
+}
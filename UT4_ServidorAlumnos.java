@@ -53,11 +53,16 @@ import java.util.*;             // 📚 Para usar HashMap, List, etc.
 public class UT4_ServidorAlumnos {
 
     // 🧠 Base de datos en memoria (clave = ID, valor = Alumno)
-    static Map<Integer, Alumno> bd = new HashMap<>();
+    // 🧭 TreeMap mantiene los IDs ordenados: la paginación empieza en cualquier ID sin ordenar nada
+    static TreeMap<Integer, Alumno> bd = new TreeMap<>();
     static int idAuto = 1; // 🔢 Autoincremento de IDs
 
     public static void main(String[] args) throws IOException {
         // 🌐 Creamos el servidor en el puerto 8080
+        // ⏱ Una petición que tarda más de 30 s en llegar entera se corta (clientes lentos)
+        if (System.getProperty("sun.net.httpserver.maxReqTime") == null)
+            System.setProperty("sun.net.httpserver.maxReqTime", "30");
+
         HttpServer server = HttpServer.create(new InetSocketAddress(8080), 0);
 
         // 📍 Ruta principal para alumnos
@@ -81,22 +86,24 @@ public class UT4_ServidorAlumnos {
 // - PUT /alumnos/1 → actualiza los datos del alumno con ID 1
 // - DELETE /alumnos/1 → elimina el alumno con ID 1
 //
-// 🔍 Este método extrae el path y lo divide con split("/") para saber cuántos elementos tiene la ruta:
-// - Si tiene 2 → es la ruta base /alumnos
-// - Si tiene 3 → incluye un ID, por ejemplo /alumnos/2
+// 🔍 Este método recorre el path carácter a carácter (sin split ni parseInt) con idDeRuta:
+// - SIN_ID → es la ruta base /alumnos
+// - Un número ≥ 0 → incluye un ID, por ejemplo /alumnos/2 (uno negativo, /alumnos/-1, da 404: no existe)
+// - ID_INVALIDO → /alumnos/abc (400) · RUTA_INVALIDA → /alumnos/1/x (404)
 //
 // 🔁 Según el método HTTP (GET, POST, etc.) llama a la función correspondiente.
     public static void gestionarAlumnos(HttpExchange ex) throws IOException {
         String path = ex.getRequestURI().getPath(); // 📄 /alumnos o /alumnos/1
         String method = ex.getRequestMethod();      // 📥 GET, POST, etc.
-        String[] partes = path.split("/");
+        int id = idDeRuta(path, "/alumnos");
 
-        if (partes.length == 2) { // 📍 /alumnos
+        if (id == SIN_ID) { // 📍 /alumnos
             if (method.equals("GET")) listar(ex);
             else if (method.equals("POST")) crear(ex);
             else noPermitido(ex);
-        } else if (partes.length == 3) { // 📍 /alumnos/{id}
-            int id = Integer.parseInt(partes[2]);
+        } else if (id == ID_INVALIDO) {
+            responder(ex, 400, "ID inválido");
+        } else if (id >= 0 || id == ID_NEGATIVO) { // 📍 /alumnos/{id}
             switch (method) {
                 case "GET" -> obtener(ex, id);
                 case "PUT" -> actualizar(ex, id);
@@ -108,6 +115,32 @@ public class UT4_ServidorAlumnos {
         }
     }
 
+    // 🧭 Resultados especiales de idDeRuta (los IDs válidos son ≥ 0)
+    // ID_NEGATIVO: /alumnos/-1 es un número, pero ningún alumno lo tiene → 404 (como con parseInt)
+    static final int SIN_ID = -1, ID_INVALIDO = -2, RUTA_INVALIDA = -3, ID_NEGATIVO = -4;
+
+    // 🔢 Saca el {id} de base/{id} sin crear arrays ni lanzar excepciones
+    static int idDeRuta(String path, String base) {
+        if (!path.startsWith(base)) return RUTA_INVALIDA;
+        int i = base.length(), fin = path.length();
+        if (fin > i && path.charAt(fin - 1) == '/') fin--; // /alumnos/ = /alumnos
+        if (i == fin) return SIN_ID;
+        if (path.charAt(i) != '/') return RUTA_INVALIDA;   // /alumnosX
+        int desde = i + 1;
+        boolean negativo = desde < fin && path.charAt(desde) == '-';
+        if (negativo) desde++;
+        long id = 0;
+        for (int k = desde; k < fin; k++) {
+            char c = path.charAt(k);
+            if (c == '/') return RUTA_INVALIDA;               // /alumnos/1/x
+            if (c < '0' || c > '9' || (id = id * 10 + (c - '0')) > Integer.MAX_VALUE) {
+                return path.indexOf('/', k) < 0 ? ID_INVALIDO : RUTA_INVALIDA;
+            }
+        }
+        if (negativo) return desde == fin ? ID_INVALIDO : ID_NEGATIVO;
+        return i + 1 == fin ? SIN_ID : (int) id;
+    }
+
     // 📤 GET /alumnos
     // curl http://localhost:8080/alumnos
     // Thunder: método GET, URL http://localhost:8080/alumnos
@@ -117,7 +150,17 @@ public class UT4_ServidorAlumnos {
 // Este método devuelve una lista de todos los alumnos registrados en formato JSON.
 // Recorre el mapa en memoria, convierte cada alumno a JSON y construye una lista tipo [ {...}, {...} ]
 // Luego la envía como respuesta con código HTTP 200.
+//
+// 📑 Paginación: GET /alumnos?limit=10&after=<cursor>
+// - Solo se recorren los alumnos de la página (tailMap desde el último ID servido).
+// - La respuesta es {"datos":[...],"next":"cursor"} y next vale null en la última página.
+// - El cursor es opaco: el cliente solo lo copia en la siguiente petición.
 static void listar(HttpExchange ex) throws IOException {
+        Map<String, String> params = parametros(ex.getRequestURI().getQuery());
+        if (params.containsKey("limit") || params.containsKey("after")) {
+            listarPagina(ex, params);
+            return;
+        }
         StringBuilder sb = new StringBuilder("[");
         for (Alumno a : bd.values()) {
             sb.append(a.toJson()).append(",");
@@ -127,6 +170,60 @@ static void listar(HttpExchange ex) throws IOException {
         responder(ex, 200, sb.toString());
     }
 
+    static final int LIMITE_PAGINA = 100; // 📏 Máximo (y por defecto) de alumnos por página
+
+    // 📑 Una página de alumnos a partir del cursor
+    static void listarPagina(HttpExchange ex, Map<String, String> params) throws IOException {
+        int limit;
+        int despuesDe;
+        try {
+            limit = Integer.parseInt(params.getOrDefault("limit", String.valueOf(LIMITE_PAGINA)));
+            despuesDe = params.containsKey("after") ? decodificarCursor(params.get("after")) : 0;
+        } catch (IllegalArgumentException e) {
+            responder(ex, 400, "Paginación inválida");
+            return;
+        }
+        if (limit < 1 || limit > LIMITE_PAGINA) {
+            responder(ex, 400, "limit debe estar entre 1 y " + LIMITE_PAGINA);
+            return;
+        }
+        Iterator<Alumno> it = bd.tailMap(despuesDe, false).values().iterator();
+        StringBuilder sb = new StringBuilder("{\"datos\":[");
+        int ultimo = despuesDe;
+        for (int n = 0; n < limit && it.hasNext(); n++) {
+            Alumno a = it.next();
+            if (n > 0) sb.append(",");
+            sb.append(a.toJson());
+            ultimo = a.getId();
+        }
+        sb.append("],\"next\":");
+        sb.append(it.hasNext() ? "\"" + codificarCursor(ultimo) + "\"" : "null").append("}");
+        responder(ex, 200, sb.toString());
+    }
+
+    // 🧭 Cursor opaco = último ID servido en Base64 URL
+    static String codificarCursor(int ultimoId) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(("a" + ultimoId).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    static int decodificarCursor(String cursor) {
+        String s = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.US_ASCII);
+        if (!s.startsWith("a")) throw new IllegalArgumentException("cursor desconocido");
+        return Integer.parseInt(s.substring(1));
+    }
+
+    // 🔎 Convierte "limit=10&after=xyz" en un Map
+    static Map<String, String> parametros(String query) {
+        Map<String, String> m = new HashMap<>();
+        if (query == null) return m;
+        for (String par : query.split("&")) {
+            int i = par.indexOf('=');
+            if (i > 0) m.put(par.substring(0, i), par.substring(i + 1));
+        }
+        return m;
+    }
+
     // 📥 GET /alumnos/{id}
     // curl http://localhost:8080/alumnos/1
     // Thunder: método GET, URL http://localhost:8080/alumnos/1
@@ -152,7 +249,8 @@ static void obtener(HttpExchange ex, int id) throws IOException {
 // lo convierte a un objeto Alumno, le asigna un ID autoincrementado,
 // lo guarda en el mapa y lo devuelve como respuesta con código 201 (creado).
 static void crear(HttpExchange ex) throws IOException {
-        String body = new String(ex.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        String body = leerCuerpo(ex);
+        if (body == null) return; // 400/413 ya enviado
         Alumno nuevo = Alumno.fromJson(body);
         nuevo.setId(idAuto++); // 🆔 Asigna ID automáticamente
         bd.put(nuevo.getId(), nuevo);
@@ -174,7 +272,8 @@ static void actualizar(HttpExchange ex, int id) throws IOException {
             responder(ex, 404, "No encontrado");
             return;
         }
-        String body = new String(ex.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        String body = leerCuerpo(ex);
+        if (body == null) return; // 400/413 ya enviado
         Alumno nuevo = Alumno.fromJson(body);
         nuevo.setId(id);
         bd.put(id, nuevo);
@@ -194,6 +293,37 @@ static void eliminar(HttpExchange ex, int id) throws IOException {
         else responder(ex, 204, "");
     }
 
+    // 📏 Tamaño máximo del body: un alumno en JSON ocupa unas decenas de bytes
+    static final int MAX_CUERPO = 8 * 1024;
+    // ♻️ Un buffer por hilo, reutilizado en cada petición (no se reserva memoria por body)
+    static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[MAX_CUERPO + 1]);
+
+    // 📥 Lee el body sin pasar de MAX_CUERPO bytes, con las mismas reglas que UT3:
+    // - Content-Length mayor que MAX_CUERPO (o llegan más bytes) → 413 sin leer el resto
+    // - Content-Length no numérico o body más corto de lo anunciado → 400
+    // Si ya respondió con error devuelve null.
+    static String leerCuerpo(HttpExchange ex) throws IOException {
+        String cl = ex.getRequestHeaders().getFirst("Content-Length");
+        long anunciado = -1;
+        if (cl != null) {
+            try { anunciado = Long.parseLong(cl.trim()); } catch (NumberFormatException ignored) {}
+            if (anunciado < 0) return rechazar(ex, 400, "Content-Length inválido");
+        }
+        if (anunciado > MAX_CUERPO) return rechazar(ex, 413, "Body demasiado grande (máx " + MAX_CUERPO + " bytes)");
+        byte[] buf = BUFFER.get();
+        int n = ex.getRequestBody().readNBytes(buf, 0, buf.length);
+        if (n > MAX_CUERPO) return rechazar(ex, 413, "Body demasiado grande (máx " + MAX_CUERPO + " bytes)");
+        if (anunciado >= 0 && n < anunciado) return rechazar(ex, 400, "Body incompleto");
+        return new String(buf, 0, n, StandardCharsets.UTF_8);
+    }
+
+    // 🚫 Responde el error y pide cerrar la conexión: lo que quede del body se descarta
+    static String rechazar(HttpExchange ex, int status, String mensaje) throws IOException {
+        ex.getResponseHeaders().set("Connection", "close");
+        responder(ex, status, mensaje);
+        return null;
+    }
+
     // ⚠️ Método no permitido
     static void noPermitido(HttpExchange ex) throws IOException {
         responder(ex, 405, "Método no permitido");
@@ -268,6 +398,12 @@ static void responder(HttpExchange ex, int status, String body) throws IOExcepti
  * - URL: http://localhost:8080/alumnos
  * - Sin body
 
+ * 1️⃣➕ ✅ GET → Listar por páginas
+ * - Método: GET
+ * - URL: http://localhost:8080/alumnos?limit=2
+ * - Respuesta: {"datos":[...],"next":"cursor"}
+ * - Siguiente página: http://localhost:8080/alumnos?limit=2&after=<cursor>
+
  * 2️⃣ ✅ POST → Crear nuevo alumno
  * - Método: POST
  * - URL: http://localhost:8080/alumnos
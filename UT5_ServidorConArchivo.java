@@ -62,6 +62,10 @@ public class UT5_ServidorConArchivo {
     public static void main(String[] args) throws IOException {
         cargarDesdeArchivo(); // 🔁 Carga inicial de datos del archivo
 
+        // ⏱ Una petición que tarda más de 30 s en llegar entera se corta (clientes lentos)
+        if (System.getProperty("sun.net.httpserver.maxReqTime") == null)
+            System.setProperty("sun.net.httpserver.maxReqTime", "30");
+
         HttpServer server = HttpServer.create(new InetSocketAddress(8080), 0);
         server.createContext("/alumnos", UT5_ServidorConArchivo::gestionar);
         server.setExecutor(null); // Ejecutores por defecto
@@ -69,17 +73,18 @@ public class UT5_ServidorConArchivo {
         System.out.println("Servidor iniciado en http://localhost:8080/alumnos");
     }
 
-    // 🔀 Manejo general de rutas
+    // 🔀 Manejo general de rutas (el ID se lee en el sitio, sin split ni parseInt)
     static void gestionar(HttpExchange ex) throws IOException {
-        String[] partes = ex.getRequestURI().getPath().split("/");
+        int id = idDeRuta(ex.getRequestURI().getPath(), "/alumnos");
         String metodo = ex.getRequestMethod();
 
-        if (partes.length == 2) {
+        if (id == SIN_ID) {
             if (metodo.equals("GET")) listar(ex);
             else if (metodo.equals("POST")) crear(ex);
             else noPermitido(ex);
-        } else if (partes.length == 3) {
-            int id = Integer.parseInt(partes[2]);
+        } else if (id == ID_INVALIDO) {
+            responder(ex, 400, "ID inválido");
+        } else if (id >= 0 || id == ID_NEGATIVO) {
             switch (metodo) {
                 case "GET" -> obtener(ex, id);
                 case "PUT" -> actualizar(ex, id);
@@ -91,6 +96,32 @@ public class UT5_ServidorConArchivo {
         }
     }
 
+    // 🧭 Resultados especiales de idDeRuta (los IDs válidos son ≥ 0)
+    // ID_NEGATIVO: /alumnos/-1 es un número, pero ningún alumno lo tiene → 404 (como con parseInt)
+    static final int SIN_ID = -1, ID_INVALIDO = -2, RUTA_INVALIDA = -3, ID_NEGATIVO = -4;
+
+    // 🔢 Saca el {id} de base/{id} sin crear arrays ni lanzar excepciones
+    static int idDeRuta(String path, String base) {
+        if (!path.startsWith(base)) return RUTA_INVALIDA;
+        int i = base.length(), fin = path.length();
+        if (fin > i && path.charAt(fin - 1) == '/') fin--; // /alumnos/ = /alumnos
+        if (i == fin) return SIN_ID;
+        if (path.charAt(i) != '/') return RUTA_INVALIDA;   // /alumnosX
+        int desde = i + 1;
+        boolean negativo = desde < fin && path.charAt(desde) == '-';
+        if (negativo) desde++;
+        long id = 0;
+        for (int k = desde; k < fin; k++) {
+            char c = path.charAt(k);
+            if (c == '/') return RUTA_INVALIDA;               // /alumnos/1/x
+            if (c < '0' || c > '9' || (id = id * 10 + (c - '0')) > Integer.MAX_VALUE) {
+                return path.indexOf('/', k) < 0 ? ID_INVALIDO : RUTA_INVALIDA;
+            }
+        }
+        if (negativo) return desde == fin ? ID_INVALIDO : ID_NEGATIVO;
+        return i + 1 == fin ? SIN_ID : (int) id;
+    }
+
     // 📥 GET /alumnos
     // curl http://localhost:8080/alumnos
     // Thunder Client: método GET, URL http://localhost:8080/alumnos
@@ -115,7 +146,8 @@ public class UT5_ServidorConArchivo {
     // curl -X POST http://localhost:8080/alumnos -d '{"nombre":"Juan","edad":20}' -H "Content-Type: application/json"
     // Thunder Client: POST, URL + body JSON con nombre y edad
     static void crear(HttpExchange ex) throws IOException {
-        String body = new String(ex.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        String body = leerCuerpo(ex);
+        if (body == null) return; // 400/413 ya enviado
         Alumno nuevo = Alumno.fromJson(body);
         nuevo.setId(idAuto++);
         bd.put(nuevo.getId(), nuevo);
@@ -131,7 +163,8 @@ public class UT5_ServidorConArchivo {
             responder(ex, 404, "No encontrado");
             return;
         }
-        String body = new String(ex.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        String body = leerCuerpo(ex);
+        if (body == null) return; // 400/413 ya enviado
         Alumno modificado = Alumno.fromJson(body);
         modificado.setId(id);
         bd.put(id, modificado);
@@ -139,6 +172,37 @@ public class UT5_ServidorConArchivo {
         responder(ex, 200, modificado.toJson());
     }
 
+    // 📏 Tamaño máximo del body: un alumno en JSON ocupa unas decenas de bytes
+    static final int MAX_CUERPO = 8 * 1024;
+    // ♻️ Un buffer por hilo, reutilizado en cada petición (no se reserva memoria por body)
+    static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[MAX_CUERPO + 1]);
+
+    // 📥 Lee el body sin pasar de MAX_CUERPO bytes, con las mismas reglas que UT3:
+    // - Content-Length mayor que MAX_CUERPO (o llegan más bytes) → 413 sin leer el resto
+    // - Content-Length no numérico o body más corto de lo anunciado → 400
+    // Si ya respondió con error devuelve null.
+    static String leerCuerpo(HttpExchange ex) throws IOException {
+        String cl = ex.getRequestHeaders().getFirst("Content-Length");
+        long anunciado = -1;
+        if (cl != null) {
+            try { anunciado = Long.parseLong(cl.trim()); } catch (NumberFormatException ignored) {}
+            if (anunciado < 0) return rechazar(ex, 400, "Content-Length inválido");
+        }
+        if (anunciado > MAX_CUERPO) return rechazar(ex, 413, "Body demasiado grande (máx " + MAX_CUERPO + " bytes)");
+        byte[] buf = BUFFER.get();
+        int n = ex.getRequestBody().readNBytes(buf, 0, buf.length);
+        if (n > MAX_CUERPO) return rechazar(ex, 413, "Body demasiado grande (máx " + MAX_CUERPO + " bytes)");
+        if (anunciado >= 0 && n < anunciado) return rechazar(ex, 400, "Body incompleto");
+        return new String(buf, 0, n, StandardCharsets.UTF_8);
+    }
+
+    // 🚫 Responde el error y pide cerrar la conexión: lo que quede del body se descarta
+    static String rechazar(HttpExchange ex, int status, String mensaje) throws IOException {
+        ex.getResponseHeaders().set("Connection", "close");
+        responder(ex, status, mensaje);
+        return null;
+    }
+
     // ❌ DELETE /alumnos/{id}
     // curl -X DELETE http://localhost:8080/alumnos/1
     // Thunder Client: DELETE, URL con id del alumno
@@ -0,0 +1,284 @@
+/**
+ * 📖 UT7 - Generador de carga HTTP en lazo abierto (java.net.http.HttpClient)
+ * ===========================================================================
+ *
+ * 📘 ¿Para qué sirve?
+ * ----------------------------------------------------
+ * Probar a mano con Thunder Client dice si una ruta funciona, no cuántas
+ * peticiones por segundo aguanta. Este programa lanza peticiones a un ritmo
+ * fijo contra UT3 (/productos), UT4 o UT5 (/alumnos), sube el ritmo por
+ * escalones y muestra en qué punto el servidor se satura.
+ *
+ * 🔍 Conceptos clave:
+ * ----------------------------------------------------
+ * ✅ Lazo abierto: las peticiones salen a su hora (tasa fija), conteste o no
+ *    el servidor. Un cliente "cerrado" (envía, espera, envía...) frena cuando
+ *    el servidor frena y oculta justo lo que queremos ver.
+ * ✅ Omisión coordinada: la latencia se cuenta desde la hora PREVISTA de envío,
+ *    no desde que se envió de verdad. Si el generador va con retraso porque el
+ *    servidor no da abasto, ese retraso también lo sufriría un usuario real.
+ *    Se muestran las dos (prevista y de servicio) para ver la diferencia.
+ * ✅ Percentiles (p50, p90, p99, p99.9) con un histograma de cubos logarítmicos:
+ *    memoria fija y sin guardar cada muestra.
+ * ✅ Mezcla de lecturas y escrituras: GET /{id}, POST (alta) y PUT (cambio).
+ * ✅ Saturación: un escalón está saturado si no alcanza el 95 % de la tasa pedida,
+ *    si falla más del 1 % o si su p99 supera el máximo (carga.p99Max).
+ *
+ * ▶️ ¿Cómo se usa?
+ * ----------------------------------------------------
+ *   java UT3_ApiRestProductos                    (en otra terminal)
+ *   java UT7_GeneradorCarga                      → http://localhost:8000/productos
+ *   java UT7_GeneradorCarga http://localhost:8080/alumnos
+ *   java -Dcarga.tasas=200,400,800,1600 -Dcarga.escrituras=20 UT7_GeneradorCarga
+ *
+ * ⚙️ Propiedades (-D):
+ *    carga.tasas      peticiones/s de cada escalón     (100,200,500,1000,2000,5000)
+ *    carga.segundos   duración de cada escalón          (10)
+ *    carga.escrituras % de escrituras (mitad POST, mitad PUT) (10)
+ *    carga.semillas   recursos creados antes de empezar (100)
+ *    carga.maxEnCurso peticiones sin respuesta antes de omitir envíos (5000)
+ *    carga.timeout    ms de espera por respuesta        (5000)
+ *    carga.p99Max     ms de p99 a partir del cual el escalón está saturado (500)
+ *    carga.seguir     true = no parar en el primer escalón saturado (false)
+ */
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class UT7_GeneradorCarga {
+
+    static final int SEGUNDOS = Integer.getInteger("carga.segundos", 10);
+    static final int ESCRITURAS = Integer.getInteger("carga.escrituras", 10);
+    static final int SEMILLAS = Integer.getInteger("carga.semillas", 100);
+    static final int MAX_EN_CURSO = Integer.getInteger("carga.maxEnCurso", 5000);
+    static final long TIMEOUT_MS = Long.getLong("carga.timeout", 5000L);
+    static final long P99_MAX_MS = Long.getLong("carga.p99Max", 500L);
+    static final boolean SEGUIR = Boolean.getBoolean("carga.seguir");
+
+    static final Pattern ID = Pattern.compile("\"id\"\\s*:\\s*(\\d+)");
+
+    final URI base;
+    final boolean alumnos;                // 🧑‍🎓 /alumnos (UT4/UT5) o 📦 /productos (UT3)
+    final HttpClient cliente;
+    final long[] ids;                     // 🆔 recursos creados al empezar (lecturas y PUT)
+
+    UT7_GeneradorCarga(URI base) {
+        this.base = base;
+        this.alumnos = base.getPath().contains("alumnos");
+        ExecutorService respuestas = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "carga-respuestas");
+            t.setDaemon(true);
+            return t;
+        });
+        this.cliente = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofMillis(TIMEOUT_MS))
+                .executor(respuestas)
+                .build();
+        this.ids = new long[SEMILLAS];
+    }
+
+    public static void main(String[] args) throws Exception {
+        URI base = URI.create(args.length > 0 ? args[0] : "http://localhost:8000/productos");
+        int[] tasas = Arrays.stream(System.getProperty("carga.tasas", "100,200,500,1000,2000,5000").split(","))
+                .map(String::trim).mapToInt(Integer::parseInt).toArray();
+
+        UT7_GeneradorCarga g = new UT7_GeneradorCarga(base);
+        g.sembrar();
+        System.out.printf("🎯 %s · %d s por escalón · %d %% escrituras · %d recursos semilla%n",
+                base, SEGUNDOS, ESCRITURAS, SEMILLAS);
+        System.out.println("   Latencia prevista = desde la hora planificada (corrige la omisión coordinada)");
+        System.out.println("   Latencia servicio = desde el envío real (lo que mediría un cliente ingenuo)");
+        System.out.println();
+        System.out.printf("%8s %8s %8s %6s %6s %6s | %8s %8s %8s %8s %8s | %9s %9s%n",
+                "pedida/s", "real/s", "ok", "4xx", "5xx", "fallos",
+                "p50", "p90", "p99", "p99.9", "máx", "p99 serv", "omitidas");
+
+        int ultimaSana = 0;
+        for (int tasa : tasas) {
+            Escalon e = g.escalon(tasa);
+            boolean saturado = e.saturado();
+            System.out.println(e.fila() + (saturado ? "  ⚠️ saturado" : ""));
+            if (!saturado) ultimaSana = tasa;
+            else if (!SEGUIR) break;
+        }
+        System.out.println();
+        if (ultimaSana == 0) System.out.println("📉 Saturado ya en el primer escalón: prueba tasas más bajas");
+        else System.out.printf("📈 Punto de saturación: entre %d y el siguiente escalón (peticiones/s)%n", ultimaSana);
+    }
+
+    // 🌱 Crea los recursos que luego se leen y modifican (fuera de la medida)
+    void sembrar() throws Exception {
+        for (int i = 0; i < SEMILLAS; i++) {
+            HttpResponse<String> r = cliente.send(alta(i), HttpResponse.BodyHandlers.ofString());
+            Matcher m = ID.matcher(r.body());
+            if (r.statusCode() >= 300 || !m.find())
+                throw new IllegalStateException("No se pudo crear el recurso semilla: " + r.statusCode() + " " + r.body());
+            ids[i] = Long.parseLong(m.group(1));
+        }
+    }
+
+    /**
+     * ⏱ Un escalón en lazo abierto: la petición i sale en inicio + i/tasa segundos
+     * - Si el generador va tarde (servidor lento) sale en cuanto puede, pero su
+     *   latencia se sigue contando desde la hora prevista
+     * - Con demasiadas peticiones sin respuesta no se envía: se cuenta como omitida
+     *   (el cliente tampoco tiene memoria infinita) y marca saturación
+     */
+    Escalon escalon(int tasa) throws InterruptedException {
+        Escalon e = new Escalon(tasa);
+        AtomicInteger enCurso = new AtomicInteger();
+        SplittableRandom azar = new SplittableRandom(tasa);
+        double periodo = 1e9 / tasa;
+        long total = (long) tasa * SEGUNDOS;
+        long inicio = System.nanoTime() + 10_000_000L;
+        for (long i = 0; i < total; i++) {
+            long previsto = inicio + (long) (i * periodo);
+            long espera = previsto - System.nanoTime();
+            if (espera > 0) LockSupport.parkNanos(espera);
+            if (enCurso.get() >= MAX_EN_CURSO) { e.omitidas.increment(); continue; }
+            HttpRequest peticion = siguiente(azar, i);
+            enCurso.incrementAndGet();
+            long enviado = System.nanoTime();
+            cliente.sendAsync(peticion, HttpResponse.BodyHandlers.discarding()).whenComplete((r, error) -> {
+                long ahora = System.nanoTime();
+                if (error != null) e.fallos.increment();
+                else e.registrar(r.statusCode(), (ahora - previsto) / 1000, (ahora - enviado) / 1000);
+                enCurso.decrementAndGet();
+            });
+        }
+        e.duracionNanos = System.nanoTime() - inicio;
+        // ⏳ Se esperan las que quedan en vuelo: su latencia también cuenta
+        long limite = System.nanoTime() + TIMEOUT_MS * 1_000_000L;
+        while (enCurso.get() > 0 && System.nanoTime() < limite) Thread.sleep(5);
+        e.perdidas = enCurso.get();
+        return e;
+    }
+
+    // 🎲 Lectura GET /{id}; escritura: alterna POST (alta) y PUT (cambio)
+    HttpRequest siguiente(SplittableRandom azar, long i) {
+        long id = ids[azar.nextInt(ids.length)];
+        if (azar.nextInt(100) >= ESCRITURAS)
+            return HttpRequest.newBuilder(recurso(id)).timeout(Duration.ofMillis(TIMEOUT_MS)).GET().build();
+        if ((i & 1) == 0) return alta(i);
+        return HttpRequest.newBuilder(recurso(id)).timeout(Duration.ofMillis(TIMEOUT_MS))
+                .header("Content-Type", "application/json")
+                .PUT(HttpRequest.BodyPublishers.ofString(cuerpo(i))).build();
+    }
+
+    HttpRequest alta(long i) {
+        return HttpRequest.newBuilder(base).timeout(Duration.ofMillis(TIMEOUT_MS))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(cuerpo(i))).build();
+    }
+
+    URI recurso(long id) { return URI.create(base.toString() + "/" + id); }
+
+    String cuerpo(long i) {
+        return alumnos
+                ? "{\"nombre\":\"Carga " + i + "\",\"edad\":" + (18 + i % 50) + "}"
+                : "{\"nombre\":\"Carga " + i + "\",\"precio\":" + (1 + i % 500) + ".95,\"stock\":" + (i % 100) + "}";
+    }
+
+    /**
+     * 📊 Resultados de un escalón: contadores por tipo de respuesta y dos
+     * histogramas de latencia (prevista y de servicio) en microsegundos
+     */
+    static final class Escalon {
+        final int tasa;
+        final LongAdder ok = new LongAdder(), cliente4xx = new LongAdder(), servidor5xx = new LongAdder();
+        final LongAdder fallos = new LongAdder(), omitidas = new LongAdder();
+        final Histograma prevista = new Histograma(), servicio = new Histograma();
+        long duracionNanos;
+        int perdidas;                     // sin respuesta al acabar la espera final
+
+        Escalon(int tasa) { this.tasa = tasa; }
+
+        void registrar(int status, long microsPrevista, long microsServicio) {
+            if (status >= 500) servidor5xx.increment();       // 503: rechazada por control de admisión
+            else if (status >= 400) cliente4xx.increment();   // 429: límite por IP
+            else ok.increment();
+            prevista.registrar(microsPrevista);
+            servicio.registrar(microsServicio);
+        }
+
+        long respondidas() { return ok.sum() + cliente4xx.sum() + servidor5xx.sum(); }
+
+        double real() { return respondidas() * 1e9 / Math.max(1, duracionNanos); }
+
+        // ⚠️ No llega al 95 % de la tasa, falla más del 1 % o el p99 se dispara
+        boolean saturado() {
+            long intentos = respondidas() + fallos.sum() + omitidas.sum() + perdidas;
+            long malas = fallos.sum() + omitidas.sum() + perdidas + servidor5xx.sum() + cliente4xx.sum();
+            return real() < tasa * 0.95 || malas > intentos / 100 || prevista.percentil(0.99) > P99_MAX_MS * 1000;
+        }
+
+        String fila() {
+            return String.format("%8d %8.0f %8d %6d %6d %6d | %8s %8s %8s %8s %8s | %9s %9d",
+                    tasa, real(), ok.sum(), cliente4xx.sum(), servidor5xx.sum(), fallos.sum() + perdidas,
+                    ms(prevista.percentil(0.50)), ms(prevista.percentil(0.90)), ms(prevista.percentil(0.99)),
+                    ms(prevista.percentil(0.999)), ms(prevista.maximo()), ms(servicio.percentil(0.99)),
+                    omitidas.sum());
+        }
+
+        static String ms(long micros) { return String.format("%.2fms", micros / 1000.0); }
+    }
+
+    /**
+     * 📈 Histograma de cubos logarítmicos (valores en microsegundos)
+     * - Hasta 63 µs un cubo por valor; después cada potencia de 2 se divide en 32
+     *   cubos iguales: error relativo máximo de ~3 % con memoria fija
+     * - Sin candados: cada respuesta suma 1 en su cubo (AtomicLongArray)
+     */
+    static final class Histograma {
+        private static final int SUBCUBOS = 32;
+        private static final int CUBOS = 64 + (63 - 6) * SUBCUBOS;
+        private final AtomicLongArray cubos = new AtomicLongArray(CUBOS);
+
+        void registrar(long micros) { cubos.incrementAndGet(indice(Math.max(0, micros))); }
+
+        static int indice(long v) {
+            if (v < 64) return (int) v;
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            int sub = (int) ((v >>> (exp - 5)) & (SUBCUBOS - 1));
+            return 64 + (exp - 6) * SUBCUBOS + sub;
+        }
+
+        // 📏 Límite superior de un cubo: el percentil nunca sale por debajo del real
+        static long techo(int indice) {
+            if (indice < 64) return indice;
+            int exp = (indice - 64) / SUBCUBOS + 6;
+            int sub = (indice - 64) % SUBCUBOS;
+            long ancho = 1L << (exp - 5);
+            return (1L << exp) + (sub + 1) * ancho - 1;
+        }
+
+        long percentil(double q) {
+            long total = 0;
+            for (int i = 0; i < CUBOS; i++) total += cubos.get(i);
+            if (total == 0) return 0;
+            long objetivo = (long) Math.ceil(q * total), acumulado = 0;
+            for (int i = 0; i < CUBOS; i++) {
+                acumulado += cubos.get(i);
+                if (acumulado >= objetivo) return techo(i);
+            }
+            return techo(CUBOS - 1);
+        }
+
+        long maximo() {
+            for (int i = CUBOS - 1; i >= 0; i--) if (cubos.get(i) > 0) return techo(i);
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,1439 @@
+/**
+ * 📖 UT7 - Motor HTTP/1.1 propio con NIO (Selector + SocketChannel)
+ * ==================================================================
+ *
+ * 📘 ¿Qué se estudia en UT7?
+ * ----------------------------------------------------
+ * Todos los servidores del curso (UT2, UT3, UT4, UT5) usan el HttpServer del JDK.
+ * Aquí construimos un motor alternativo con E/S no bloqueante y lo enchufamos
+ * detrás de la MISMA API (com.sun.net.httpserver): los handlers no cambian.
+ *
+ * 🔍 Conceptos clave:
+ * ----------------------------------------------------
+ * ✅ Selector: un hilo vigila miles de sockets y solo trabaja con los que tienen datos.
+ * ✅ Varios bucles (uno por núcleo): el aceptador reparte las conexiones en turno rotatorio.
+ * ✅ ByteBuffer directos en un pool: el socket lee/escribe sin copias intermedias y
+ *    las conexiones inactivas (keep-alive) no ocupan buffer.
+ * ✅ Cabeceras analizadas en el sitio por posiciones (sin readLine ni split); el
+ *    cuerpo pequeño se entrega al handler como vista del mismo buffer, sin copiarlo.
+ * ✅ Cuerpo grande o chunked: el handler empieza en cuanto llegan las cabeceras y lo
+ *    lee según llega, en buffers del pool y con un máximo en cola (nunca entero en memoria).
+ * ✅ Keep-alive y pipelining: varias peticiones seguidas en la misma conexión se
+ *    atienden en orden sin esperar a leer más del socket.
+ * ✅ Respuestas: cabeceras y cuerpo pequeño salen juntos en una sola escritura;
+ *    Content-Length, chunked o hasta cierre (HTTP/1.0) según sendResponseHeaders.
+ * ✅ Reparto al pool de hilos del servidor (setExecutor) con contrapresión:
+ *    si el cliente lee lento, el handler espera en lugar de llenar la memoria.
+ * ✅ HttpServerProvider: el JDK crea NUESTRO servidor en HttpServer.create(...).
+ *
+ * ▶️ ¿Cómo se usa?
+ * ----------------------------------------------------
+ *   java UT7_MotorHttpNio                          → arranca UT3 sobre el motor NIO
+ *   java UT7_MotorHttpNio UT4_ServidorAlumnos      → cualquier otra clase con main
+ *   java -Dcom.sun.net.httpserver.HttpServerProvider=UT7_MotorHttpNio UT5_ServidorConArchivo
+ *
+ * ⚙️ Propiedades (-D): ut7.bucles (nº de selectores, por defecto nº de núcleos),
+ *    ut7.buffer (bytes por buffer, 16 KB), ut7.maxCuerpo (64 MB),
+ *    ut7.inactividad (ms hasta cerrar una conexión quieta, 30000)
+ *
+ * ⚠️ Limitaciones: sin HTTPS ni Authenticator (ningún servidor del curso los usa);
+ *    pedirlos lanza UnsupportedOperationException, que indica usar el servidor del JDK.
+ */
+
+import com.sun.net.httpserver.*;
+import com.sun.net.httpserver.spi.HttpServerProvider;
+import java.io.*;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class UT7_MotorHttpNio extends HttpServerProvider {
+
+    static final int TAMANO_BUFFER = Integer.getInteger("ut7.buffer", 16 * 1024);
+    static final long MAX_CUERPO = Long.getLong("ut7.maxCuerpo", 64L << 20);
+    static final long INACTIVIDAD_MS = Long.getLong("ut7.inactividad", 30_000L);
+    static final int MAX_PENDIENTE = 256 * 1024; // 🚰 bytes en cola antes de frenar al handler
+
+    // ♻️ Buffers directos compartidos por todos los bucles y conexiones
+    static final PoolDirectos buffers = new PoolDirectos(1024, TAMANO_BUFFER);
+
+    /**
+     * 🚀 Arranca otra clase del curso (UT3 por defecto) con este motor.
+     * La propiedad se fija ANTES de que nadie toque HttpServer: el JDK lee el
+     * proveedor una sola vez, en el primer HttpServer.create(...).
+     */
+    public static void main(String[] args) throws Exception {
+        System.setProperty("com.sun.net.httpserver.HttpServerProvider", UT7_MotorHttpNio.class.getName());
+        String destino = args.length > 0 ? args[0] : "UT3_ApiRestProductos";
+        String[] resto = args.length > 0 ? Arrays.copyOfRange(args, 1, args.length) : new String[0];
+        System.out.println("🧩 Motor HTTP NIO para " + destino);
+        Class.forName(destino).getMethod("main", String[].class).invoke(null, (Object) resto);
+    }
+
+    // 🏭 Lo llama HttpServer.create(...) cuando este proveedor está configurado
+    @Override
+    public HttpServer createHttpServer(InetSocketAddress direccion, int backlog) throws IOException {
+        ServidorNio s = new ServidorNio();
+        if (direccion != null) s.bind(direccion, backlog);
+        return s;
+    }
+
+    // 🔒 Sin TLS: para HTTPS hay que arrancar sin -Dcom.sun.net.httpserver.HttpServerProvider
+    static final String USA_EL_DEL_JDK = " (arranca sin -Dcom.sun.net.httpserver.HttpServerProvider="
+            + "UT7_MotorHttpNio para usar el servidor del JDK, que sí lo tiene)";
+
+    @Override
+    public HttpsServer createHttpsServer(InetSocketAddress direccion, int backlog) {
+        throw new UnsupportedOperationException("El motor NIO de UT7 no implementa HTTPS" + USA_EL_DEL_JDK);
+    }
+
+    /**
+     * 🖥 Servidor: contextos, pool de hilos y los bucles de selección.
+     * El bucle 0 además acepta conexiones y las reparte entre todos.
+     */
+    static class ServidorNio extends HttpServer {
+        private ServerSocketChannel aceptador;
+        private volatile Executor executor;
+        private final List<Contexto> contextos = new CopyOnWriteArrayList<>();
+        private Bucle[] bucles;
+        private long turno;
+        private volatile boolean arrancado;
+        final AtomicInteger enCurso = new AtomicInteger(); // 🔢 intercambios sin terminar
+
+        @Override
+        public void bind(InetSocketAddress direccion, int backlog) throws IOException {
+            if (aceptador != null) throw new BindException("El servidor ya está enlazado");
+            ServerSocketChannel canal = ServerSocketChannel.open();
+            canal.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            canal.bind(direccion, backlog);
+            canal.configureBlocking(false);
+            aceptador = canal;
+        }
+
+        @Override
+        public void start() {
+            if (aceptador == null) throw new IllegalStateException("El servidor no está enlazado");
+            if (arrancado) throw new IllegalStateException("El servidor ya está arrancado");
+            arrancado = true;
+            int n = Math.max(1, Integer.getInteger("ut7.bucles", Runtime.getRuntime().availableProcessors()));
+            try {
+                bucles = new Bucle[n];
+                for (int i = 0; i < n; i++) bucles[i] = new Bucle(this, i);
+                aceptador.register(bucles[0].selector, SelectionKey.OP_ACCEPT);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            for (Bucle b : bucles) b.hilo.start();
+        }
+
+        // 🤝 En el bucle 0: acepta todo lo pendiente y lo reparte en turno rotatorio
+        void aceptar() throws IOException {
+            SocketChannel canal;
+            while ((canal = aceptador.accept()) != null) {
+                Bucle b = bucles[(int) (turno++ % bucles.length)];
+                SocketChannel nuevo = canal;
+                b.ejecutar(() -> b.registrar(nuevo));
+            }
+        }
+
+        @Override
+        public void setExecutor(Executor executor) {
+            if (arrancado) throw new IllegalStateException("El servidor ya está arrancado");
+            this.executor = executor;
+        }
+
+        @Override
+        public Executor getExecutor() { return executor; }
+
+        // 🛑 Deja de aceptar, espera hasta "segundos" a los intercambios en curso y cierra
+        @Override
+        public void stop(int segundos) {
+            if (segundos < 0) throw new IllegalArgumentException("El retardo no puede ser negativo");
+            try { if (aceptador != null) aceptador.close(); } catch (IOException ignorada) {}
+            long limite = System.currentTimeMillis() + segundos * 1000L;
+            while (enCurso.get() > 0 && System.currentTimeMillis() < limite) {
+                try { Thread.sleep(20); } catch (InterruptedException e) { Thread.currentThread().interrupt(); break; }
+            }
+            if (bucles == null) return;
+            for (Bucle b : bucles) { b.activo = false; b.selector.wakeup(); }
+            for (Bucle b : bucles) {
+                try { b.hilo.join(1000); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            }
+        }
+
+        @Override
+        public HttpContext createContext(String ruta, HttpHandler handler) {
+            Contexto c = (Contexto) createContext(ruta);
+            c.setHandler(handler);
+            return c;
+        }
+
+        @Override
+        public synchronized HttpContext createContext(String ruta) {
+            if (ruta == null || !ruta.startsWith("/")) throw new IllegalArgumentException("Ruta de contexto no válida: " + ruta);
+            for (Contexto c : contextos)
+                if (c.getPath().equals(ruta)) throw new IllegalArgumentException("Contexto repetido: " + ruta);
+            Contexto c = new Contexto(this, ruta);
+            contextos.add(c);
+            return c;
+        }
+
+        @Override
+        public synchronized void removeContext(String ruta) {
+            for (Contexto c : contextos) {
+                if (c.getPath().equals(ruta)) { contextos.remove(c); return; }
+            }
+            throw new IllegalArgumentException("No existe el contexto " + ruta);
+        }
+
+        @Override
+        public void removeContext(HttpContext contexto) {
+            if (!contextos.remove(contexto)) throw new IllegalArgumentException("Contexto de otro servidor");
+        }
+
+        @Override
+        public InetSocketAddress getAddress() {
+            try {
+                return aceptador == null ? null : (InetSocketAddress) aceptador.getLocalAddress();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        // 🧭 Igual que el JDK: gana el contexto con el prefijo más largo
+        Contexto buscarContexto(String ruta) {
+            Contexto mejor = null;
+            for (Contexto c : contextos) {
+                if (ruta.startsWith(c.getPath()) && (mejor == null || c.getPath().length() > mejor.getPath().length()))
+                    mejor = c;
+            }
+            return mejor;
+        }
+    }
+
+    // 📍 Contexto: ruta base + handler + filtros (como los de HttpServer.createContext)
+    static class Contexto extends HttpContext {
+        private final ServidorNio servidor;
+        private final String ruta;
+        private volatile HttpHandler handler;
+        private final Map<String, Object> atributos = new ConcurrentHashMap<>();
+        private final List<Filter> filtros = new CopyOnWriteArrayList<>();
+        private Authenticator autenticador;
+
+        Contexto(ServidorNio servidor, String ruta) {
+            this.servidor = servidor;
+            this.ruta = ruta;
+        }
+
+        @Override public HttpHandler getHandler() { return handler; }
+
+        @Override
+        public void setHandler(HttpHandler h) {
+            if (h == null) throw new NullPointerException("handler");
+            if (handler != null) throw new IllegalArgumentException("El contexto ya tiene handler");
+            handler = h;
+        }
+
+        @Override public String getPath() { return ruta; }
+
+        @Override public HttpServer getServer() { return servidor; }
+
+        @Override public Map<String, Object> getAttributes() { return atributos; }
+
+        @Override public List<Filter> getFilters() { return filtros; }
+
+        // 🔐 Guardarlo sin aplicarlo dejaría el contexto abierto creyendo que está protegido
+        @Override
+        public Authenticator setAuthenticator(Authenticator a) {
+            if (a != null)
+                throw new UnsupportedOperationException("El motor NIO de UT7 no aplica Authenticator" + USA_EL_DEL_JDK);
+            Authenticator antes = autenticador;
+            autenticador = null;
+            return antes;
+        }
+
+        @Override public Authenticator getAuthenticator() { return autenticador; }
+    }
+
+    /**
+     * 🔁 Bucle de eventos: un hilo con su Selector y las conexiones que le tocan.
+     * Todo lo que toca el estado de lectura de una conexión ocurre en este hilo;
+     * los demás hilos le piden cosas con ejecutar(...).
+     */
+    static final class Bucle implements Runnable {
+        final ServidorNio servidor;
+        final Selector selector;
+        final Thread hilo;
+        final ConcurrentLinkedQueue<Runnable> tareas = new ConcurrentLinkedQueue<>();
+        final byte[] auxiliar = new byte[TAMANO_BUFFER];  // 📋 copia de las cabeceras para analizarlas
+        ByteBuffer lectura = buffers.tomar();            // 📥 buffer de lectura de las conexiones sin datos
+        Selector esperaCuerpo;                           // ⏳ para handlers sin pool que esperan su cuerpo
+        long ahora = System.currentTimeMillis();
+        volatile boolean activo = true;
+
+        Bucle(ServidorNio servidor, int n) throws IOException {
+            this.servidor = servidor;
+            this.selector = Selector.open();
+            this.hilo = new Thread(this, "nio-bucle-" + n);
+        }
+
+        void ejecutar(Runnable tarea) {
+            tareas.add(tarea);
+            selector.wakeup();
+        }
+
+        void registrar(SocketChannel canal) {
+            try {
+                canal.configureBlocking(false);
+                canal.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Conexion c = new Conexion(this, canal);
+                c.clave = canal.register(selector, SelectionKey.OP_READ, c);
+            } catch (IOException e) {
+                try { canal.close(); } catch (IOException ignorada) {}
+            }
+        }
+
+        @Override
+        public void run() {
+            long revision = ahora;
+            try {
+                while (activo) {
+                    selector.select(1000);
+                    ahora = System.currentTimeMillis();
+                    Runnable t;
+                    while ((t = tareas.poll()) != null) {
+                        try { t.run(); } catch (RuntimeException e) { System.err.println("⚠️ Tarea del bucle: " + e); }
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey k = it.next();
+                        it.remove();
+                        atender(k);
+                    }
+                    if (ahora - revision >= 1000) { revision = ahora; cerrarInactivas(); }
+                }
+            } catch (IOException e) {
+                System.err.println("⚠️ Bucle " + hilo.getName() + " detenido: " + e);
+            } finally {
+                for (SelectionKey k : selector.keys()) if (k.attachment() instanceof Conexion c) c.cerrar();
+                try { selector.close(); } catch (IOException ignorada) {}
+                try { if (esperaCuerpo != null) esperaCuerpo.close(); } catch (IOException ignorada) {}
+            }
+        }
+
+        private void atender(SelectionKey k) {
+            if (!k.isValid()) return;
+            if (k.isAcceptable()) {
+                try { servidor.aceptar(); } catch (IOException e) { System.err.println("⚠️ accept: " + e); }
+                return;
+            }
+            Conexion c = (Conexion) k.attachment();
+            try {
+                if (k.isWritable()) c.escribir();
+                if (k.isValid() && k.isReadable()) c.leer();
+            } catch (IOException | RuntimeException e) {
+                c.cerrar();
+            }
+        }
+
+        // ⏱ Conexiones quietas (keep-alive o peticiones a medias) sin handler activo.
+        //    Un cuerpo en pausa porque el handler aún no lo lee no cuenta como quieto.
+        private void cerrarInactivas() {
+            for (SelectionKey k : selector.keys()) {
+                if (k.attachment() instanceof Conexion c && c.estado != Estado.ATENDIENDO && !c.pausada
+                        && ahora - c.ultimaActividad > INACTIVIDAD_MS) c.cerrar();
+            }
+        }
+    }
+
+    // CUERPO y TROZOS: el handler ya está atendiendo mientras el bucle le pasa el cuerpo
+    enum Estado { ESPERANDO, CUERPO, TROZOS, ATENDIENDO }
+
+    /**
+     * 🔌 Una conexión TCP: buffer de entrada, petición en curso y cola de salida.
+     * - Entrada: solo la usa su bucle. Mientras un handler atiende una petición no
+     *   se lee más (las siguientes del pipelining esperan en el buffer o en el socket).
+     * - Salida: la usan el handler (cualquier hilo) y el bucle, con un cerrojo.
+     *   El handler escribe directo en el socket; lo que no cabe queda en cola y el
+     *   bucle lo termina de enviar cuando el socket admite más (OP_WRITE).
+     */
+    static final class Conexion {
+        final Bucle bucle;
+        final SocketChannel canal;
+        final InetSocketAddress remota, local;
+        SelectionKey clave;
+
+        ByteBuffer entrada;           // null cuando no hay bytes pendientes
+        int inicio, escaneado;        // inicio de lo no consumido / hasta dónde se buscó \r\n\r\n
+        Estado estado = Estado.ESPERANDO;
+        boolean enUso;                // el handler lee el cuerpo directamente de "entrada"
+        CuerpoEntrante entrante;      // cuerpo que no cabía en "entrada": llega al handler por partes
+        long restante;                // bytes de Content-Length que faltan por leer del socket
+        boolean pausada;              // OP_READ quitado: el handler tiene ya bastante cuerpo en cola
+        DecodificadorTrozos trozos;   // cuerpo Transfer-Encoding: chunked
+        long ultimaActividad;
+
+        private final ReentrantLock cerrojo = new ReentrantLock();
+        private final Condition drenado = cerrojo.newCondition();
+        private final ArrayDeque<ByteBuffer> pendientes = new ArrayDeque<>();
+        private long bytesPendientes;
+        private boolean cerrarAlVaciar;
+        volatile boolean cerrada;
+
+        Conexion(Bucle bucle, SocketChannel canal) throws IOException {
+            this.bucle = bucle;
+            this.canal = canal;
+            this.remota = (InetSocketAddress) canal.getRemoteAddress();
+            this.local = (InetSocketAddress) canal.getLocalAddress();
+            this.ultimaActividad = bucle.ahora;
+        }
+
+        // 📥 OP_READ (hilo del bucle)
+        void leer() throws IOException {
+            if (estado == Estado.CUERPO) { leerCuerpo(); return; }
+            ByteBuffer destino = entrada != null ? entrada : bucle.lectura;
+            int n = canal.read(destino);
+            if (n < 0) { cerrar(); return; }
+            if (n == 0) return;
+            ultimaActividad = bucle.ahora;
+            if (entrada == null) {
+                // 🔄 La conexión se queda el buffer compartido y el bucle toma otro del pool
+                entrada = destino;
+                bucle.lectura = buffers.tomar();
+                inicio = escaneado = 0;
+            }
+            procesar();
+        }
+
+        /**
+         * 📦 Cuerpo con Content-Length que no cabía en "entrada": se lee en un buffer del
+         * pool sin pasar de lo que falta (lo que venga detrás es la siguiente petición).
+         */
+        private void leerCuerpo() throws IOException {
+            ByteBuffer b = buffers.tomar();
+            b.limit((int) Math.min(b.capacity(), restante));
+            int n = canal.read(b);
+            if (n <= 0) {
+                buffers.devolver(b);
+                if (n < 0) { entrante.fallar(new EOFException("Cuerpo incompleto")); cerrar(); }
+                return;
+            }
+            ultimaActividad = bucle.ahora;
+            restante -= n;
+            boolean sitio = entrante.aportar(b.flip());
+            if (restante == 0) finCuerpo();
+            else if (!sitio) pausar();
+        }
+
+        // ✅ Llegó todo el cuerpo: no se lee más hasta que el handler termine
+        private void finCuerpo() {
+            entrante.terminar();
+            trozos = null;
+            estado = Estado.ATENDIENDO;
+            clave.interestOpsAnd(~SelectionKey.OP_READ);
+        }
+
+        // 🚰 El handler no da abasto: se deja de leer el socket (TCP frena al cliente)
+        private void pausar() {
+            pausada = true;
+            clave.interestOpsAnd(~SelectionKey.OP_READ);
+        }
+
+        // ▶️ El handler vació la cola (se llama en el bucle)
+        void reanudar() {
+            if (cerrada || !pausada) return;
+            pausada = false;
+            ultimaActividad = bucle.ahora;
+            try { clave.interestOpsOr(SelectionKey.OP_READ); } catch (CancelledKeyException e) { cerrar(); }
+        }
+
+        /**
+         * ⏳ Handler sin pool: corre en el propio bucle, así que nadie más leerá el socket.
+         * Se espera a que haya datos con un Selector aparte (un canal admite varios) y se
+         * leen por el camino normal, que los deja en la cola del cuerpo.
+         */
+        void esperarCuerpo() throws IOException {
+            if (bucle.esperaCuerpo == null) bucle.esperaCuerpo = Selector.open();
+            Selector s = bucle.esperaCuerpo;
+            SelectionKey k = canal.register(s, SelectionKey.OP_READ);
+            try {
+                if (s.select(INACTIVIDAD_MS) == 0) {
+                    entrante.fallar(new InterruptedIOException("Tiempo agotado esperando el cuerpo"));
+                    cerrar();
+                    return;
+                }
+                s.selectedKeys().clear();
+                bucle.ahora = System.currentTimeMillis();
+                leer();
+            } finally {
+                k.cancel();
+                s.selectNow();
+            }
+        }
+
+        // 🧩 Intenta sacar UNA petición completa de lo leído (hilo del bucle)
+        void procesar() {
+            try {
+                if (estado == Estado.TROZOS) {
+                    if (trozos.consumir(this)) finCuerpo();
+                    else if (entrante.lleno()) pausar();
+                    return;
+                }
+                if (entrada == null) return;
+                int fin = entrada.position();
+                while (inicio < fin && (entrada.get(inicio) == '\r' || entrada.get(inicio) == '\n')) inicio++;
+                if (inicio == fin) { liberarEntrada(); return; }
+                int finCabeceras = buscarFinCabeceras(fin);
+                if (finCabeceras < 0) {
+                    if (fin == entrada.capacity()) {
+                        if (inicio == 0) throw new ErrorHttp(431, "Cabeceras demasiado grandes");
+                        compactar();
+                    }
+                    return;
+                }
+                Peticion p = Peticion.leer(entrada, inicio, finCabeceras, bucle.auxiliar);
+                inicio = finCabeceras;
+                if (p.trozos) {
+                    // 🧱 El handler arranca ya; los trozos se decodifican según llegan
+                    //    (lo ya leído se decodifica antes: un handler sin pool solo esperará al socket)
+                    trozos = new DecodificadorTrozos();
+                    entrante = new CuerpoEntrante(this);
+                    boolean completo = trozos.consumir(this);
+                    estado = Estado.TROZOS;
+                    if (completo) finCuerpo();
+                    else {
+                        if (p.continuar) enviar(ByteBuffer.wrap(CONTINUAR));
+                        if (entrante.lleno()) pausar();
+                    }
+                    despachar(p, entrante);
+                    return;
+                }
+                int disponibles = fin - inicio;
+                if (p.largo <= disponibles) {
+                    // 🪞 Cuerpo completo en el buffer: el handler lo lee de una vista, sin copiarlo
+                    InputStream in = InputStream.nullInputStream();
+                    if (p.largo > 0) {
+                        ByteBuffer vista = entrada.duplicate();
+                        vista.limit(inicio + (int) p.largo).position(inicio);
+                        in = new EntradaBuffer(vista);
+                        enUso = true;
+                    }
+                    inicio += (int) p.largo;
+                    despachar(p, in);
+                } else {
+                    // 📦 No cabe: el handler arranca ya y recibe el cuerpo por partes del pool.
+                    //    Así un 413 temprano del handler llega antes de leer nada más.
+                    entrante = new CuerpoEntrante(this);
+                    if (disponibles > 0) {
+                        ByteBuffer b = buffers.tomar();
+                        b.put(entrada.duplicate().limit(fin).position(inicio));
+                        entrante.aportar(b.flip());
+                    }
+                    inicio = fin;
+                    liberarEntrada();
+                    restante = p.largo - disponibles;
+                    estado = Estado.CUERPO;
+                    if (p.continuar) enviar(ByteBuffer.wrap(CONTINUAR));
+                    despachar(p, entrante);
+                }
+            } catch (ErrorHttp e) {
+                // Con el handler ya en marcha no se puede responder: se le avisa y se cierra
+                if (entrante != null && estado == Estado.TROZOS) { entrante.fallar(e); cerrar(); }
+                else rechazar(e.codigo, e.getMessage());
+            } catch (IOException e) {
+                cerrar();
+            }
+        }
+
+        private int buscarFinCabeceras(int fin) {
+            for (int i = Math.max(inicio, escaneado); i + 3 < fin; i++) {
+                if (entrada.get(i) == '\r' && entrada.get(i + 1) == '\n'
+                        && entrada.get(i + 2) == '\r' && entrada.get(i + 3) == '\n') return i + 4;
+            }
+            escaneado = Math.max(inicio, fin - 3);
+            return -1;
+        }
+
+        // 📦 Mueve lo no consumido al principio del buffer para seguir leyendo
+        void compactar() {
+            if (inicio == 0) return;
+            entrada.limit(entrada.position()).position(inicio);
+            entrada.compact();
+            escaneado = Math.max(0, escaneado - inicio);
+            inicio = 0;
+        }
+
+        // ♻️ Sin bytes pendientes el buffer vuelve al pool: una conexión en keep-alive no ocupa memoria
+        private void liberarEntrada() {
+            if (entrada != null && !enUso && inicio == entrada.position()) {
+                buffers.devolver(entrada);
+                entrada = null;
+                inicio = escaneado = 0;
+            }
+        }
+
+        /**
+         * 🚚 Petición → handler (en el pool del servidor o, sin pool, en este hilo).
+         * Si el cuerpo aún está llegando (CUERPO/TROZOS) se sigue leyendo el socket.
+         */
+        private void despachar(Peticion p, InputStream cuerpoPeticion) {
+            if (estado != Estado.CUERPO && estado != Estado.TROZOS) {
+                estado = Estado.ATENDIENDO;
+                clave.interestOpsAnd(~SelectionKey.OP_READ);
+            }
+            Contexto ctx = bucle.servidor.buscarContexto(p.uri.getRawPath() == null ? "" : p.uri.getPath());
+            Intercambio ix = new Intercambio(this, p, ctx, cuerpoPeticion);
+            bucle.servidor.enCurso.incrementAndGet();
+            Executor ejecutor = bucle.servidor.executor;
+            if (ejecutor == null) { ix.atender(); return; }
+            try {
+                ejecutor.execute(ix::atender);
+            } catch (RejectedExecutionException e) {
+                ix.abortar();
+            }
+        }
+
+        // ✅ El handler terminó la respuesta (se llama en el bucle): a por la siguiente
+        void siguiente(boolean cerrarDespues) {
+            if (cerrada) return;
+            enUso = false;
+            if (entrante != null) {
+                // ✂️ Respondió sin leer todo el cuerpo: no se sabe dónde empieza la siguiente
+                if (estado != Estado.ATENDIENDO) {
+                    cerrarDespues = true;
+                    try { clave.interestOpsAnd(~SelectionKey.OP_READ); } catch (CancelledKeyException ignorada) {}
+                }
+                entrante.descartar(new IOException("El intercambio ya terminó"));
+                entrante = null;
+                trozos = null;
+                pausada = false;
+            }
+            estado = Estado.ESPERANDO;
+            ultimaActividad = bucle.ahora;
+            if (cerrarDespues) { cerrarTrasEnviar(); return; }
+            procesar();   // 🚄 pipelining: puede haber otra petición ya en el buffer
+            if (!cerrada && estado != Estado.ATENDIENDO) {
+                try { clave.interestOpsOr(SelectionKey.OP_READ); } catch (CancelledKeyException e) { cerrar(); }
+            }
+        }
+
+        // ⛔ Error del propio motor (400, 413, 431...): respuesta corta y se cierra
+        void rechazar(int codigo, String mensaje) {
+            estado = Estado.ATENDIENDO;
+            try { clave.interestOpsAnd(~SelectionKey.OP_READ); } catch (CancelledKeyException ignorada) {}
+            byte[] texto = mensaje.getBytes(StandardCharsets.UTF_8);
+            byte[] cab = ("HTTP/1.1 " + codigo + " " + razon(codigo) + "\r\nContent-Type: text/plain; charset=utf-8"
+                    + "\r\nContent-Length: " + texto.length + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            ByteBuffer b = ByteBuffer.allocate(cab.length + texto.length).put(cab).put(texto).flip();
+            try {
+                enviar(b);
+                cerrarTrasEnviar();
+            } catch (IOException e) {
+                cerrar();
+            }
+        }
+
+        /**
+         * 📤 Envía un buffer (cualquier hilo). Si no hay nada en cola se escribe en el
+         * socket desde este mismo hilo (sin saltar al bucle); lo que sobra se encola.
+         * Un handler que escribe más rápido de lo que el cliente lee se queda esperando.
+         */
+        void enviar(ByteBuffer b) throws IOException {
+            cerrojo.lock();
+            try {
+                if (cerrada) { devolver(b); throw new IOException("Conexión cerrada"); }
+                if (pendientes.isEmpty()) canal.write(b);
+                if (!b.hasRemaining()) { devolver(b); return; }
+                pendientes.add(b);
+                bytesPendientes += b.remaining();
+                if (pendientes.size() == 1) {
+                    clave.interestOpsOr(SelectionKey.OP_WRITE);
+                    bucle.selector.wakeup();
+                }
+                if (Thread.currentThread() == bucle.hilo) return; // el bucle no puede esperarse a sí mismo
+                while (bytesPendientes > MAX_PENDIENTE && !cerrada) drenado.await();
+                if (cerrada) throw new IOException("Conexión cerrada");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Envío interrumpido");
+            } catch (CancelledKeyException e) {
+                throw new IOException("Conexión cerrada");
+            } finally {
+                cerrojo.unlock();
+            }
+        }
+
+        // 📤 OP_WRITE (hilo del bucle): vacía la cola todo lo que admita el socket
+        void escribir() throws IOException {
+            cerrojo.lock();
+            try {
+                ByteBuffer b;
+                while ((b = pendientes.peek()) != null) {
+                    bytesPendientes -= canal.write(b);
+                    if (b.hasRemaining()) break;
+                    pendientes.poll();
+                    devolver(b);
+                }
+                ultimaActividad = bucle.ahora;
+                if (pendientes.isEmpty()) {
+                    clave.interestOpsAnd(~SelectionKey.OP_WRITE);
+                    if (cerrarAlVaciar) cerrar();
+                }
+                if (bytesPendientes <= MAX_PENDIENTE) drenado.signalAll();
+            } finally {
+                cerrojo.unlock();
+            }
+        }
+
+        void cerrarTrasEnviar() {
+            cerrojo.lock();
+            try {
+                if (pendientes.isEmpty()) cerrar();
+                else cerrarAlVaciar = true;
+            } finally {
+                cerrojo.unlock();
+            }
+        }
+
+        // 🔒 Cierre (hilo del bucle). Un buffer que aún lee un handler no vuelve al pool.
+        void cerrar() {
+            cerrojo.lock();
+            try {
+                if (cerrada) return;
+                cerrada = true;
+                for (ByteBuffer b : pendientes) devolver(b);
+                pendientes.clear();
+                bytesPendientes = 0;
+                drenado.signalAll();
+            } finally {
+                cerrojo.unlock();
+            }
+            if (clave != null) clave.cancel();
+            try { canal.close(); } catch (IOException ignorada) {}
+            if (entrada != null && !enUso) buffers.devolver(entrada);
+            entrada = null;
+            if (entrante != null) entrante.descartar(new IOException("Conexión cerrada"));
+        }
+
+        private static void devolver(ByteBuffer b) {
+            if (b.isDirect() && b.capacity() == TAMANO_BUFFER) buffers.devolver(b);
+        }
+    }
+
+    static final byte[] CONTINUAR = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    // ⚠️ Error de protocolo con su código HTTP
+    static final class ErrorHttp extends IOException {
+        private static final long serialVersionUID = 1L;
+        final int codigo;
+
+        ErrorHttp(int codigo, String mensaje) {
+            super(mensaje);
+            this.codigo = codigo;
+        }
+    }
+
+    /**
+     * 🧾 Línea de petición + cabeceras, analizadas sobre el bloque de cabeceras.
+     * Se copia el bloque UNA vez del buffer directo al array auxiliar del bucle y se
+     * recorre por posiciones: solo se crean los String finales (método, URI, nombre y
+     * valor de cada cabecera), nunca líneas ni arrays intermedios.
+     */
+    static final class Peticion {
+        String metodo, protocolo;
+        URI uri;
+        final Headers cabeceras = new Headers();
+        long largo;
+        boolean trozos, persistente, continuar;
+
+        static Peticion leer(ByteBuffer buf, int desde, int hasta, byte[] aux) throws ErrorHttp {
+            int n = hasta - desde;
+            buf.get(desde, aux, 0, n);
+            Peticion p = new Peticion();
+            int fl = crlf(aux, 0, n);
+            int sp1 = indice(aux, ' ', 0, fl);
+            int sp2 = sp1 < 0 ? -1 : indice(aux, ' ', sp1 + 1, fl);
+            if (sp1 <= 0 || sp2 < 0) throw new ErrorHttp(400, "Línea de petición mal formada");
+            p.metodo = texto(aux, 0, sp1);
+            p.protocolo = texto(aux, sp2 + 1, fl);
+            if (!p.protocolo.equals("HTTP/1.1") && !p.protocolo.equals("HTTP/1.0"))
+                throw new ErrorHttp(505, "Versión HTTP no soportada");
+            try {
+                p.uri = new URI(texto(aux, sp1 + 1, sp2));
+            } catch (URISyntaxException e) {
+                throw new ErrorHttp(400, "URI no válida");
+            }
+            for (int i = fl + 2; i < n; ) {
+                int fin = crlf(aux, i, n);
+                if (fin == i) break;                                   // línea vacía: fin de cabeceras
+                if (aux[i] == ' ' || aux[i] == '\t') throw new ErrorHttp(400, "Cabecera plegada no admitida");
+                int dp = indice(aux, ':', i, fin);
+                if (dp <= i || aux[dp - 1] == ' ') throw new ErrorHttp(400, "Cabecera mal formada");
+                int v0 = dp + 1, v1 = fin;
+                while (v0 < v1 && (aux[v0] == ' ' || aux[v0] == '\t')) v0++;
+                while (v1 > v0 && (aux[v1 - 1] == ' ' || aux[v1 - 1] == '\t')) v1--;
+                p.cabeceras.add(texto(aux, i, dp), texto(aux, v0, v1));
+                i = fin + 2;
+            }
+            p.interpretar();
+            return p;
+        }
+
+        private void interpretar() throws ErrorHttp {
+            String te = cabeceras.getFirst("Transfer-Encoding");
+            List<String> cl = cabeceras.get("Content-Length");
+            if (te != null) {
+                if (!te.equalsIgnoreCase("chunked")) throw new ErrorHttp(501, "Transfer-Encoding no soportado");
+                trozos = true;
+            } else if (cl != null) {
+                if (cl.size() != 1 || cl.get(0).isEmpty() || cl.get(0).length() > 18) throw new ErrorHttp(400, "Content-Length no válido");
+                for (int i = 0; i < cl.get(0).length(); i++) {
+                    char c = cl.get(0).charAt(i);
+                    if (c < '0' || c > '9') throw new ErrorHttp(400, "Content-Length no válido");
+                    largo = largo * 10 + (c - '0');
+                }
+                if (largo > MAX_CUERPO) throw new ErrorHttp(413, "Cuerpo demasiado grande");
+            }
+            String con = cabeceras.getFirst("Connection");
+            con = con == null ? "" : con.toLowerCase(Locale.ROOT);
+            persistente = protocolo.equals("HTTP/1.1") ? !con.contains("close") : con.contains("keep-alive");
+            continuar = protocolo.equals("HTTP/1.1") && "100-continue".equalsIgnoreCase(cabeceras.getFirst("Expect"));
+        }
+
+        static int crlf(byte[] a, int desde, int hasta) {
+            for (int i = desde; i + 1 < hasta; i++) if (a[i] == '\r' && a[i + 1] == '\n') return i;
+            return hasta;
+        }
+
+        static int indice(byte[] a, char c, int desde, int hasta) {
+            for (int i = desde; i < hasta; i++) if (a[i] == c) return i;
+            return -1;
+        }
+
+        static String texto(byte[] a, int desde, int hasta) {
+            return new String(a, desde, hasta - desde, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * 🧱 Cuerpo "Transfer-Encoding: chunked" de una petición, decodificado según llega.
+     * Los datos se copian a buffers del pool que pasan a la cola del CuerpoEntrante.
+     * falta > 0: bytes de datos del trozo actual · 0: falta el \r\n tras los datos ·
+     * -1: toca leer la línea con el tamaño (hex) · trailer: cabeceras finales
+     */
+    static final class DecodificadorTrozos {
+        private ByteBuffer salida;      // buffer del pool que se está llenando
+        private long total;
+        private long falta = -1;
+        private boolean trailer;
+
+        // true cuando el cuerpo está completo; consume de c.entrada desde c.inicio
+        boolean consumir(Conexion c) throws ErrorHttp {
+            try {
+                return decodificar(c);
+            } finally {
+                entregar(c);
+            }
+        }
+
+        private void entregar(Conexion c) {
+            if (salida == null || salida.position() == 0) return;
+            c.entrante.aportar(salida.flip());
+            salida = null;
+        }
+
+        private boolean decodificar(Conexion c) throws ErrorHttp {
+            ByteBuffer b = c.entrada;
+            if (b == null) return false;
+            int fin = b.position();
+            while (true) {
+                if (falta > 0) {
+                    int n = (int) Math.min(falta, fin - c.inicio);
+                    if (n == 0) break;
+                    total += n;
+                    if (total > MAX_CUERPO) throw new ErrorHttp(413, "Cuerpo demasiado grande");
+                    for (int hecho = 0; hecho < n; ) {
+                        if (salida == null) salida = buffers.tomar();
+                        int m = Math.min(n - hecho, salida.remaining());
+                        salida.put(salida.position(), b, c.inicio + hecho, m).position(salida.position() + m);
+                        hecho += m;
+                        if (!salida.hasRemaining()) entregar(c);
+                    }
+                    c.inicio += n;
+                    falta -= n;
+                    if (falta > 0) break;
+                }
+                int eol = -1;
+                for (int i = c.inicio; i + 1 < fin; i++) if (b.get(i) == '\r' && b.get(i + 1) == '\n') { eol = i; break; }
+                if (eol < 0) break;
+                if (falta == 0) {
+                    if (eol != c.inicio) throw new ErrorHttp(400, "Trozo mal terminado");
+                    falta = -1;
+                } else if (trailer) {
+                    if (eol == c.inicio) { c.inicio = eol + 2; return true; }
+                } else {
+                    long t = 0;
+                    int i = c.inicio;
+                    for (; i < eol && b.get(i) != ';'; i++) {
+                        int d = Character.digit(b.get(i), 16);
+                        if (d < 0 || t > (MAX_CUERPO >> 4)) throw new ErrorHttp(400, "Tamaño de trozo no válido");
+                        t = t * 16 + d;
+                    }
+                    if (i == c.inicio) throw new ErrorHttp(400, "Tamaño de trozo no válido");
+                    if (t == 0) trailer = true;
+                    else falta = t;
+                }
+                c.inicio = eol + 2;
+            }
+            // ⏳ Faltan datos: se hace sitio en el buffer para la próxima lectura
+            if (c.inicio == fin) { b.clear(); c.inicio = c.escaneado = 0; }
+            else if (fin == b.capacity()) {
+                if (c.inicio == 0) throw new ErrorHttp(400, "Línea de trozo demasiado larga");
+                c.compactar();
+            }
+            return false;
+        }
+    }
+
+    // 📖 InputStream sobre una vista de un ByteBuffer (el cuerpo sin copiar)
+    static final class EntradaBuffer extends InputStream {
+        private final ByteBuffer b;
+
+        EntradaBuffer(ByteBuffer b) { this.b = b; }
+
+        @Override public int read() { return b.hasRemaining() ? b.get() & 0xff : -1; }
+
+        @Override
+        public int read(byte[] destino, int off, int len) {
+            if (len == 0) return 0;
+            if (!b.hasRemaining()) return -1;
+            int n = Math.min(len, b.remaining());
+            b.get(destino, off, n);
+            return n;
+        }
+
+        @Override public int available() { return b.remaining(); }
+    }
+
+    /**
+     * 📨 Cuerpo que llega por partes: el bucle encola buffers del pool y el handler
+     * los lee desde su hilo. Con MAX_EN_COLA buffers esperando el bucle deja de leer
+     * el socket hasta que el handler vacía la cola (contrapresión, como en la salida).
+     * Cada buffer leído vuelve al pool: un cuerpo grande nunca está entero en memoria.
+     */
+    static final class CuerpoEntrante extends InputStream {
+        static final int MAX_EN_COLA = 4;
+        private final Conexion conexion;
+        private final ReentrantLock cerrojo = new ReentrantLock();
+        private final Condition hayDatos = cerrojo.newCondition();
+        private final ArrayDeque<ByteBuffer> cola = new ArrayDeque<>();
+        private ByteBuffer actual;          // el que está leyendo el handler
+        private boolean fin, cerrado;
+        private IOException error;
+        private final byte[] uno = new byte[1];
+
+        CuerpoEntrante(Conexion conexion) { this.conexion = conexion; }
+
+        // 📥 Bucle: un buffer más (en modo lectura). false si la cola ya está llena.
+        boolean aportar(ByteBuffer b) {
+            cerrojo.lock();
+            try {
+                if (error != null) { buffers.devolver(b); return true; }
+                cola.add(b);
+                hayDatos.signalAll();
+                return cola.size() < MAX_EN_COLA;
+            } finally {
+                cerrojo.unlock();
+            }
+        }
+
+        boolean lleno() {
+            cerrojo.lock();
+            try {
+                return cola.size() >= MAX_EN_COLA;
+            } finally {
+                cerrojo.unlock();
+            }
+        }
+
+        void terminar() {
+            cerrojo.lock();
+            try {
+                fin = true;
+                hayDatos.signalAll();
+            } finally {
+                cerrojo.unlock();
+            }
+        }
+
+        // 💥 El cuerpo no se completará: el handler recibe la excepción al leer
+        void fallar(IOException e) {
+            cerrojo.lock();
+            try {
+                if (!fin && error == null) error = e;
+                hayDatos.signalAll();
+            } finally {
+                cerrojo.unlock();
+            }
+        }
+
+        // 🧹 Intercambio terminado o conexión cerrada: lo que quede en cola vuelve al pool
+        void descartar(IOException motivo) {
+            cerrojo.lock();
+            try {
+                if (error == null) error = motivo;
+                for (ByteBuffer b : cola) buffers.devolver(b);
+                cola.clear();
+                hayDatos.signalAll();
+            } finally {
+                cerrojo.unlock();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(uno, 0, 1) < 0 ? -1 : uno[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] destino, int off, int len) throws IOException {
+            if (cerrado) throw new IOException("El cuerpo de la petición ya está cerrado");
+            if (len == 0) return 0;
+            if ((actual == null || !actual.hasRemaining()) && !siguiente()) return -1;
+            int n = Math.min(len, actual.remaining());
+            actual.get(destino, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return actual == null ? 0 : actual.remaining();
+        }
+
+        @Override
+        public void close() {
+            if (cerrado) return;
+            cerrado = true;
+            if (actual != null) { buffers.devolver(actual); actual = null; }
+        }
+
+        // ⏭ Toma el siguiente buffer de la cola; false al final del cuerpo
+        private boolean siguiente() throws IOException {
+            if (actual != null) { buffers.devolver(actual); actual = null; }
+            boolean enBucle = Thread.currentThread() == conexion.bucle.hilo;
+            while (true) {
+                cerrojo.lock();
+                try {
+                    if (!cola.isEmpty()) {
+                        boolean estabaLleno = cola.size() >= MAX_EN_COLA;
+                        actual = cola.poll();
+                        if (estabaLleno) conexion.bucle.ejecutar(conexion::reanudar);
+                        return true;
+                    }
+                    if (fin) return false;
+                    if (error != null) throw new IOException(error.getMessage(), error);
+                    if (!enBucle) { hayDatos.await(); continue; }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Lectura del cuerpo interrumpida");
+                } finally {
+                    cerrojo.unlock();
+                }
+                conexion.esperarCuerpo();
+            }
+        }
+    }
+
+    /**
+     * 🔄 Adaptador: lo que reciben los handlers del curso como HttpExchange.
+     * Funciona igual que el del JDK salvo getAttribute/setAttribute, que aquí son
+     * de cada intercambio (en el JDK se guardan en el contexto y se comparten).
+     */
+    static final class Intercambio extends HttpExchange {
+        final Conexion conexion;
+        final Peticion peticion;
+        private final Contexto contexto;
+        private final Headers respuesta = new Headers();
+        private final SalidaRespuesta salidaOriginal;
+        private InputStream entrada;
+        private OutputStream salida;
+        private int codigo = -1;
+        private Map<String, Object> atributos;
+        private final AtomicBoolean terminado = new AtomicBoolean();
+
+        Intercambio(Conexion conexion, Peticion peticion, Contexto contexto, InputStream cuerpo) {
+            this.conexion = conexion;
+            this.peticion = peticion;
+            this.contexto = contexto;
+            this.entrada = cuerpo;
+            this.salidaOriginal = new SalidaRespuesta(this);
+            this.salida = salidaOriginal;
+        }
+
+        // 🎬 Filtros + handler del contexto (o 404 si ninguno encaja)
+        void atender() {
+            try {
+                if (contexto == null || contexto.getHandler() == null) {
+                    byte[] b = "<h1>404 Not Found</h1>No context found for request".getBytes(StandardCharsets.UTF_8);
+                    respuesta.set("Content-Type", "text/html");
+                    sendResponseHeaders(404, b.length);
+                    salida.write(b);
+                    close();
+                    return;
+                }
+                new Filter.Chain(contexto.getFilters(), contexto.getHandler()).doFilter(this);
+            } catch (Throwable t) {
+                System.err.println("⚠️ Error atendiendo " + peticion.metodo + " " + peticion.uri + ": " + t);
+                abortar();
+            }
+        }
+
+        // ✅ Respuesta completa: la conexión sigue con la próxima petición (o se cierra)
+        void terminar(boolean cerrarConexion) {
+            if (!terminado.compareAndSet(false, true)) return;
+            conexion.bucle.servidor.enCurso.decrementAndGet();
+            conexion.bucle.ejecutar(() -> conexion.siguiente(cerrarConexion));
+        }
+
+        // 💥 Respuesta a medias o sin empezar: solo queda cerrar la conexión
+        void abortar() {
+            if (!terminado.compareAndSet(false, true)) return;
+            conexion.bucle.servidor.enCurso.decrementAndGet();
+            conexion.bucle.ejecutar(conexion::cerrar);
+        }
+
+        @Override public Headers getRequestHeaders() { return peticion.cabeceras; }
+
+        @Override public Headers getResponseHeaders() { return respuesta; }
+
+        @Override public URI getRequestURI() { return peticion.uri; }
+
+        @Override public String getRequestMethod() { return peticion.metodo; }
+
+        @Override public HttpContext getHttpContext() { return contexto; }
+
+        @Override
+        public void close() {
+            try {
+                salida.close();
+                salidaOriginal.close();
+            } catch (IOException e) {
+                abortar();
+            }
+        }
+
+        @Override public InputStream getRequestBody() { return entrada; }
+
+        @Override public OutputStream getResponseBody() { return salida; }
+
+        @Override
+        public void sendResponseHeaders(int codigo, long largo) throws IOException {
+            if (this.codigo != -1) throw new IOException("Las cabeceras ya se enviaron");
+            this.codigo = codigo;
+            salidaOriginal.cabeceras(codigo, largo);
+        }
+
+        @Override public InetSocketAddress getRemoteAddress() { return conexion.remota; }
+
+        @Override public int getResponseCode() { return codigo; }
+
+        @Override public InetSocketAddress getLocalAddress() { return conexion.local; }
+
+        @Override public String getProtocol() { return peticion.protocolo; }
+
+        @Override
+        public synchronized Object getAttribute(String nombre) {
+            return atributos == null ? null : atributos.get(nombre);
+        }
+
+        @Override
+        public synchronized void setAttribute(String nombre, Object valor) {
+            if (atributos == null) atributos = new HashMap<>();
+            if (valor == null) atributos.remove(nombre);
+            else atributos.put(nombre, valor);
+        }
+
+        @Override
+        public void setStreams(InputStream i, OutputStream o) {
+            if (i != null) entrada = i;
+            if (o != null) salida = o;
+        }
+
+        @Override public HttpPrincipal getPrincipal() { return null; }
+    }
+
+    /**
+     * 📤 Cuerpo de la respuesta sobre buffers directos del pool.
+     * - Las cabeceras se escriben en el mismo buffer que el principio del cuerpo:
+     *   una respuesta pequeña sale en UNA sola escritura al socket.
+     * - chunked: se reservan 10 bytes al empezar cada trozo y al cerrarlo se rellenan
+     *   con el tamaño en 8 cifras hex + \r\n (los ceros a la izquierda son válidos),
+     *   así los datos nunca se copian para poner la cabecera del trozo.
+     */
+    static final class SalidaRespuesta extends OutputStream {
+        private static final int SIN_CABECERAS = 0, SIN_CUERPO = 1, DESCARTAR = 2, FIJO = 3, TROZOS = 4, HASTA_CIERRE = 5;
+        private final Intercambio ix;
+        private ByteBuffer buf;
+        private int modo = SIN_CABECERAS;
+        private long declarado, escritos;
+        private int trozo = -1;                 // posición del hueco de 10 bytes del trozo abierto
+        private boolean cerrarConexion, cerrado;
+        private final byte[] uno = new byte[1];
+
+        SalidaRespuesta(Intercambio ix) { this.ix = ix; }
+
+        void cabeceras(int codigo, long largo) throws IOException {
+            Peticion p = ix.peticion;
+            boolean v10 = p.protocolo.equals("HTTP/1.0");
+            Headers h = ix.getResponseHeaders();
+            cerrarConexion = !p.persistente;
+            String con = h.getFirst("Connection");
+            if (con != null && con.toLowerCase(Locale.ROOT).contains("close")) cerrarConexion = true;
+            boolean sinCuerpo = largo == -1 || codigo == 204 || codigo == 304 || codigo < 200;
+
+            StringBuilder sb = new StringBuilder(256);
+            sb.append("HTTP/1.1 ").append(codigo).append(' ').append(razon(codigo)).append("\r\n");
+            for (Map.Entry<String, List<String>> e : h.entrySet()) {
+                String k = e.getKey();
+                if (k.equalsIgnoreCase("Content-Length") || k.equalsIgnoreCase("Transfer-Encoding")
+                        || k.equalsIgnoreCase("Connection")) continue;
+                for (String v : e.getValue()) sb.append(k).append(": ").append(v).append("\r\n");
+            }
+            if (!h.containsKey("Date")) sb.append("Date: ").append(fecha()).append("\r\n");
+            if (sinCuerpo) {
+                modo = SIN_CUERPO;
+                if (codigo >= 200 && codigo != 204 && codigo != 304) sb.append("Content-Length: 0\r\n");
+            } else if (largo > 0) {
+                modo = FIJO;
+                declarado = largo;
+                sb.append("Content-Length: ").append(largo).append("\r\n");
+            } else if (!v10) {
+                modo = TROZOS;
+                sb.append("Transfer-Encoding: chunked\r\n");
+            } else {
+                modo = HASTA_CIERRE;        // HTTP/1.0 no entiende chunked: el cierre marca el final
+                cerrarConexion = true;
+            }
+            if (p.metodo.equals("HEAD") && modo != SIN_CUERPO) modo = DESCARTAR;
+            if (cerrarConexion) sb.append("Connection: close\r\n");
+            else if (v10) sb.append("Connection: keep-alive\r\n");
+            sb.append("\r\n");
+            for (int i = 0; i < sb.length(); i++) {
+                if (buf == null) buf = buffers.tomar();
+                buf.put((byte) sb.charAt(i));
+                if (!buf.hasRemaining()) vaciar();
+            }
+            if (modo == SIN_CUERPO) {
+                // 📭 Como el JDK: sin cuerpo el intercambio termina aquí (close() ya no hace falta)
+                vaciar();
+                ix.terminar(cerrarConexion);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            uno[0] = (byte) b;
+            write(uno, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (cerrado) throw new IOException("El cuerpo de la respuesta ya está cerrado");
+            switch (modo) {
+                case SIN_CABECERAS -> throw new IOException("Falta llamar a sendResponseHeaders");
+                case SIN_CUERPO -> {
+                    if (len == 0) return;   // como el JDK: write(new byte[0]) tras un 204 no es un error
+                    throw new IOException("La respuesta se declaró sin cuerpo");
+                }
+                case DESCARTAR -> { return; }
+                case FIJO -> {
+                    if (escritos + len > declarado) throw new IOException("Más bytes que el Content-Length declarado");
+                }
+                default -> { }
+            }
+            escritos += len;
+            while (len > 0) {
+                if (buf == null) buf = buffers.tomar();
+                if (modo == TROZOS && trozo < 0) {
+                    if (buf.remaining() < 13) { vaciar(); continue; }
+                    trozo = buf.position();
+                    buf.position(trozo + 10);
+                }
+                int hueco = buf.remaining() - (modo == TROZOS ? 2 : 0);
+                int n = Math.min(hueco, len);
+                buf.put(b, off, n);
+                off += n;
+                len -= n;
+                if (buf.remaining() <= (modo == TROZOS ? 2 : 0)) vaciar();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!cerrado && modo != SIN_CABECERAS) vaciar();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (cerrado) return;
+            cerrado = true;
+            if (modo == SIN_CABECERAS) { ix.abortar(); return; } // como el JDK: sin cabeceras se corta
+            try {
+                if (modo == TROZOS) {
+                    cerrarTrozo();
+                    if (buf != null && buf.remaining() < 5) vaciar();
+                    if (buf == null) buf = buffers.tomar();
+                    buf.put((byte) '0').put((byte) '\r').put((byte) '\n').put((byte) '\r').put((byte) '\n');
+                }
+                if (modo == FIJO && escritos < declarado) cerrarConexion = true;
+                vaciar();
+                ix.terminar(cerrarConexion);
+            } catch (IOException e) {
+                ix.abortar();
+                throw e;
+            }
+        }
+
+        private void cerrarTrozo() {
+            if (trozo < 0) return;
+            int n = buf.position() - trozo - 10;
+            if (n == 0) {
+                buf.position(trozo);
+            } else {
+                for (int i = 7; i >= 0; i--, n >>>= 4) buf.put(trozo + i, HEX[n & 15]);
+                buf.put(trozo + 8, (byte) '\r').put(trozo + 9, (byte) '\n');
+                buf.put((byte) '\r').put((byte) '\n');
+            }
+            trozo = -1;
+        }
+
+        // 🚀 Entrega el buffer actual a la conexión (deja de ser nuestro)
+        private void vaciar() throws IOException {
+            cerrarTrozo();
+            if (buf == null) return;
+            if (buf.position() == 0) return;
+            ByteBuffer b = buf.flip();
+            buf = null;
+            ix.conexion.enviar(b);
+        }
+
+        private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    static String razon(int codigo) {
+        return switch (codigo) {
+            case 100 -> "Continue";
+            case 200 -> "OK";
+            case 201 -> "Created";
+            case 202 -> "Accepted";
+            case 204 -> "No Content";
+            case 206 -> "Partial Content";
+            case 301 -> "Moved Permanently";
+            case 302 -> "Found";
+            case 304 -> "Not Modified";
+            case 400 -> "Bad Request";
+            case 401 -> "Unauthorized";
+            case 403 -> "Forbidden";
+            case 404 -> "Not Found";
+            case 405 -> "Method Not Allowed";
+            case 409 -> "Conflict";
+            case 412 -> "Precondition Failed";
+            case 413 -> "Payload Too Large";
+            case 415 -> "Unsupported Media Type";
+            case 429 -> "Too Many Requests";
+            case 431 -> "Request Header Fields Too Large";
+            case 500 -> "Internal Server Error";
+            case 501 -> "Not Implemented";
+            case 503 -> "Service Unavailable";
+            case 505 -> "HTTP Version Not Supported";
+            default -> "";
+        };
+    }
+
+    // 📅 Cabecera Date: se formatea como mucho una vez por segundo
+    record Fecha(long segundo, String texto) {}
+
+    private static volatile Fecha fechaCache = new Fecha(-1, "");
+
+    static String fecha() {
+        long s = System.currentTimeMillis() / 1000;
+        Fecha f = fechaCache;
+        if (f.segundo() != s) {
+            f = new Fecha(s, DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochSecond(s).atOffset(ZoneOffset.UTC)));
+            fechaCache = f;
+        }
+        return f.texto();
+    }
+
+    /**
+     * ♻️ Pool de ByteBuffer directos (reservar memoria directa es caro: se reutilizan)
+     * - tomar(): uno libre o uno nuevo si el pool está vacío
+     * - devolver(): se limpia y vuelve; si el pool está lleno lo recoge el GC
+     */
+    static final class PoolDirectos {
+        private final ArrayBlockingQueue<ByteBuffer> libres;
+        private final int tamano;
+
+        PoolDirectos(int capacidad, int tamano) {
+            this.libres = new ArrayBlockingQueue<>(capacidad);
+            this.tamano = tamano;
+        }
+
+        ByteBuffer tomar() {
+            ByteBuffer b = libres.poll();
+            return b != null ? b : ByteBuffer.allocateDirect(tamano);
+        }
+
+        void devolver(ByteBuffer b) {
+            b.clear();
+            libres.offer(b);
+        }
+    }
+}
+
+/*
+ * 🧪 PRUEBAS (terminal o Thunder Client):
+ * =======================================
+ * 1. java UT7_MotorHttpNio
+ *    ✔️ Arranca UT3 (productos) en :8000 servido por los bucles "nio-bucle-N".
+ *    Todo lo de UT3 funciona igual: CRUD, paginación, gzip, ETag, /metrics...
+ *
+ * 2. Keep-alive: curl -v http://localhost:8000/productos http://localhost:8000/productos
+ *    ✔️ "Re-using existing connection": la segunda petición va por el mismo socket.
+ *
+ * 3. Pipelining (varias peticiones de golpe, sin esperar respuesta):
+ *    printf 'GET /productos/1 HTTP/1.1\r\nHost: x\r\n\r\nGET /productos/2 HTTP/1.1\r\nHost: x\r\n\r\n' | nc localhost 8000
+ *    ✔️ Dos respuestas, en el mismo orden.
+ *
+ * 4. Cuerpo chunked: curl -H "Transfer-Encoding: chunked" -d '{"nombre":"Taza","precio":3}' http://localhost:8000/productos
+ *    ✔️ 201 (el motor reconstruye el cuerpo a partir de los trozos).
+ *
+ * 5. Handlers que escriben un cuerpo vacío tras un 204 (UT4/UT5 responder):
+ *    java UT7_MotorHttpNio UT4_ServidorAlumnos
+ *    curl -d '{"nombre":"Ana","edad":20}' http://localhost:8080/alumnos
+ *    curl -i -X DELETE http://localhost:8080/alumnos/1
+ *    ✔️ "HTTP/1.1 204 No Content" y la conexión sigue viva (antes: curl salía con 52, respuesta vacía).
+ *
+ * 6. Comparar motores con la misma carga:
+ *    java UT3_ApiRestProductos            (HttpServer del JDK)
+ *    java UT7_MotorHttpNio                (motor NIO)
+ *    y lanzar el mismo generador de carga contra ambos.
+ *
+ * ✏️ EJERCICIOS:
+ * 7. Cambia -Dut7.bucles=1 y compara el rendimiento con varios núcleos.
+ * 8. Baja -Dut7.inactividad=2000 y observa cómo se cierran las conexiones quietas.
+ */